@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * Repeatable timings of the geofence storage and lookup paths, on
+ * synthetic fences from a fixed seed.
+ *
+ * This lives outside the app's source folder, so it never ships in the
+ * APK; compile it against the app's classes. Each benchmark returns a
+ * report, so it can also be called from an instrumentation test on a
+ * device. {@link #main} runs the ones that need no {@link Context} on a
+ * desktop JVM and prints the reports. {@link #comparePrefsLoad} reads
+ * real SharedPreferences and needs a device. Every timing is the best of
+ * {@link #RUNS} runs, after one untimed warm-up.
+ */
+public class GeofenceBenchmark {
+
+    // Timed runs of each measurement; the fastest is reported
+    public static final int RUNS = 5;
+
+    // Center of the synthetic fences
+    private static final double CENTER_LATITUDE = 47.6;
+    private static final double CENTER_LONGITUDE = -122.3;
+
+    // Seed of every synthetic data set
+    private static final long SEED = 20130601L;
+
+    // SharedPreferences file of the legacy schema fixture
+    private static final String PREFS_FIXTURE_NAME = "GeofenceBenchmark";
+
+    /**
+     * Load time of one store size, in bulk and by ID.
+     */
+    public static class LoadReport {
+        public int count;
+        public int bulkLoaded;
+        public int perIdLoaded;
+        public long bulkNanos;
+        public long perIdNanos;
+
+        @Override
+        public String toString() {
+            return String.format("%6d fences: getAllGeofences %8.2f ms, "
+                    + "getStoredIDs + getGeofence %8.2f ms (%.1fx)",
+                    count, bulkNanos / 1e6, perIdNanos / 1e6, (double) perIdNanos / bulkNanos);
+        }
+    }
+
+    /**
+     * Evaluation throughput over one walk.
+     */
+    public static class EvaluationReport {
+        public int fences;
+        public int fixes;
+        public int transitions;
+        public long scanNanos;
+        public long incrementalNanos;
+
+        public double getScanFixesPerSecond() {
+            return fixes * 1e9 / scanNanos;
+        }
+
+        public double getIncrementalFixesPerSecond() {
+            return fixes * 1e9 / incrementalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6d fences, %d fixes, %d transitions: "
+                    + "full scan %.0f fixes/s, incremental %.0f fixes/s",
+                    fences, fixes, transitions,
+                    getScanFixesPerSecond(), getIncrementalFixesPerSecond());
+        }
+    }
+
+    /**
+     * Radius query time through the grid index and by linear scan.
+     */
+    public static class QueryReport {
+        public int fences;
+        public int queries;
+        public long matches;
+        public int mismatches;
+        public long indexNanos;
+        public long linearNanos;
+
+        @Override
+        public String toString() {
+            return String.format("%6d fences, %d queries, %d matches, %d mismatches: "
+                    + "grid %.1f us/query, linear %.1f us/query (%.1fx)",
+                    fences, queries, matches, mismatches, indexNanos / 1e3 / queries,
+                    linearNanos / 1e3 / queries, (double) linearNanos / indexNanos);
+        }
+    }
+
+    private static final GeofenceEvaluator.TransitionListener sIgnore =
+            new GeofenceEvaluator.TransitionListener() {
+        @Override
+        public void onGeofenceTransition(int transition, GeofenceTable table, int slot) {
+        }
+    };
+
+    private GeofenceBenchmark() {
+    }
+
+    /**
+     * Time reading every fence of the legacy schema of
+     * {@link SimpleGeofenceStore} in one pass over the preferences, as
+     * {@link SimpleGeofenceStore#getAllGeofences()} does before the
+     * migration, against {@link SimpleGeofenceStore#getStoredIDs()}
+     * followed by six preference reads per ID. Both bypass the store's
+     * cache. SharedPreferences parses its file once per process and then
+     * serves reads from memory, so this times the decoding, not the parse.
+     *
+     * @param context Any context of the app; the fixture goes in its own
+     * SharedPreferences file, which is cleared afterwards
+     * @param counts The store sizes to time
+     * @return One report per size
+     */
+    public static LoadReport[] comparePrefsLoad(Context context, int[] counts) {
+        SharedPreferences prefs =
+                context.getSharedPreferences(PREFS_FIXTURE_NAME, Context.MODE_PRIVATE);
+        SimpleGeofenceStore store = new SimpleGeofenceStore(context, prefs);
+        LoadReport[] reports = new LoadReport[counts.length];
+        try {
+            for (int i = 0; i < counts.length; i++) {
+                prefs.edit().clear().commit();
+                store.putAllLegacy(Arrays.asList(
+                        randomFences(counts[i], 0.5, 200, SEED)), false);
+
+                LoadReport report = new LoadReport();
+                report.count = counts[i];
+                report.bulkNanos = Long.MAX_VALUE;
+                report.perIdNanos = Long.MAX_VALUE;
+                for (int run = 0; run <= RUNS; run++) {
+                    long start = System.nanoTime();
+                    report.bulkLoaded = store.readAllGeofences().size();
+                    long bulk = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    int loaded = 0;
+                    Set<String> ids = store.getStoredIDs();
+                    for (String id : ids) {
+                        if (store.readGeofence(id) != null) {
+                            loaded++;
+                        }
+                    }
+                    long perId = System.nanoTime() - start;
+                    report.perIdLoaded = loaded;
+
+                    // Run 0 warms up
+                    if (run > 0) {
+                        report.bulkNanos = Math.min(report.bulkNanos, bulk);
+                        report.perIdNanos = Math.min(report.perIdNanos, perId);
+                    }
+                }
+                reports[i] = report;
+            }
+        } finally {
+            prefs.edit().clear().commit();
+        }
+        return reports;
+    }
+
+    /**
+     * Time loading every fence of a {@link PackedGeofenceStore} with
+     * {@link PackedGeofenceStore#getAllGeofences()} against
+     * {@link PackedGeofenceStore#getStoredIDs()} followed by
+     * {@link PackedGeofenceStore#getGeofence(String)} for each ID. Both
+     * include opening the store, which scans the file for the ID index.
+     *
+     * @param directory Where to write the store files, which are deleted
+     * afterwards
+     * @param counts The store sizes to time
+     * @return One report per size
+     */
+    public static LoadReport[] compareLoad(File directory, int[] counts) throws IOException {
+        LoadReport[] reports = new LoadReport[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            File file = new File(directory, "benchmark-" + counts[i] + ".bin");
+            file.delete();
+            try {
+                PackedGeofenceStore store = new PackedGeofenceStore(file);
+                store.putAll(Arrays.asList(
+                        randomFences(counts[i], 0.5, 200, SEED)));
+                store.close();
+
+                LoadReport report = new LoadReport();
+                report.count = counts[i];
+                report.bulkNanos = Long.MAX_VALUE;
+                report.perIdNanos = Long.MAX_VALUE;
+                for (int run = 0; run <= RUNS; run++) {
+                    long start = System.nanoTime();
+                    store = new PackedGeofenceStore(file);
+                    report.bulkLoaded = store.getAllGeofences().size();
+                    store.close();
+                    long bulk = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    store = new PackedGeofenceStore(file);
+                    int loaded = 0;
+                    for (String id : store.getStoredIDs()) {
+                        if (store.getGeofence(id) != null) {
+                            loaded++;
+                        }
+                    }
+                    store.close();
+                    long perId = System.nanoTime() - start;
+                    report.perIdLoaded = loaded;
+
+                    // Run 0 warms up
+                    if (run > 0) {
+                        report.bulkNanos = Math.min(report.bulkNanos, bulk);
+                        report.perIdNanos = Math.min(report.perIdNanos, perId);
+                    }
+                }
+                reports[i] = report;
+            } finally {
+                file.delete();
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Time {@link GeofenceEvaluator#evaluate} over a walk through synthetic
+     * fences: once testing every fence on every fix, as the evaluator does
+     * after {@link GeofenceEvaluator#invalidate()}, and once testing only
+     * the fences a move could have changed.
+     *
+     * @param fenceCount The number of fences, scattered over half a degree
+     * @param fixCount The number of fixes, about 5 m apart
+     */
+    public static EvaluationReport measureEvaluation(int fenceCount, int fixCount) {
+        GeofenceTable table = new GeofenceTable(fenceCount);
+        table.addAll(Arrays.asList(randomFences(fenceCount, 0.5, 200, SEED)));
+        double[] latitudes = new double[fixCount];
+        double[] longitudes = new double[fixCount];
+        randomWalk(latitudes, longitudes, 5, SEED);
+
+        EvaluationReport report = new EvaluationReport();
+        report.fences = fenceCount;
+        report.fixes = fixCount;
+        report.scanNanos = Long.MAX_VALUE;
+        report.incrementalNanos = Long.MAX_VALUE;
+        for (int run = 0; run <= RUNS; run++) {
+            GeofenceEvaluator evaluator = new GeofenceEvaluator(table);
+            long start = System.nanoTime();
+            int transitions = 0;
+            for (int i = 0; i < fixCount; i++) {
+                evaluator.invalidate();
+                transitions +=
+                        evaluator.evaluate(latitudes[i], longitudes[i], 0, i * 1000L, sIgnore);
+            }
+            long scan = System.nanoTime() - start;
+            report.transitions = transitions;
+
+            evaluator = new GeofenceEvaluator(table);
+            start = System.nanoTime();
+            for (int i = 0; i < fixCount; i++) {
+                evaluator.evaluate(latitudes[i], longitudes[i], 0, i * 1000L, sIgnore);
+            }
+            long incremental = System.nanoTime() - start;
+
+            // Run 0 warms up
+            if (run > 0) {
+                report.scanNanos = Math.min(report.scanNanos, scan);
+                report.incrementalNanos = Math.min(report.incrementalNanos, incremental);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Time {@link GeofenceGridIndex#queryRadius} against a linear scan of
+     * the table that applies the same test to every fence, and count the
+     * queries whose results differ.
+     *
+     * @param fenceCount The number of fences, scattered over half a degree
+     * @param queryCount The number of queries, at random points of the
+     * same area with random distances up to 2 km
+     */
+    public static QueryReport compareQueries(int fenceCount, int queryCount) {
+        GeofenceTable table = new GeofenceTable(fenceCount);
+        table.addAll(Arrays.asList(randomFences(fenceCount, 0.5, 200, SEED)));
+        GeofenceGridIndex index = new GeofenceGridIndex(table);
+        index.rebuild();
+
+        Random random = new Random(SEED);
+        double[] latitudes = new double[queryCount];
+        double[] longitudes = new double[queryCount];
+        double[] distances = new double[queryCount];
+        for (int i = 0; i < queryCount; i++) {
+            latitudes[i] = CENTER_LATITUDE + (random.nextDouble() - 0.5) * 0.5;
+            longitudes[i] = CENTER_LONGITUDE + (random.nextDouble() - 0.5) * 0.5;
+            distances[i] = random.nextDouble() * 2000;
+        }
+
+        QueryReport report = new QueryReport();
+        report.fences = fenceCount;
+        report.queries = queryCount;
+        report.indexNanos = Long.MAX_VALUE;
+        report.linearNanos = Long.MAX_VALUE;
+        GeofenceGridIndex.Result result = new GeofenceGridIndex.Result();
+        int[] indexed = new int[queryCount];
+        int[] scanned = new int[queryCount];
+        for (int run = 0; run <= RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queryCount; i++) {
+                index.queryRadius(latitudes[i], longitudes[i], distances[i], result);
+                indexed[i] = checksum(result);
+            }
+            long grid = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < queryCount; i++) {
+                linearQuery(table, index, latitudes[i], longitudes[i], distances[i], result);
+                scanned[i] = checksum(result);
+                report.matches += run == 0 ? result.size() : 0;
+            }
+            long linear = System.nanoTime() - start;
+
+            // Run 0 warms up
+            if (run > 0) {
+                report.indexNanos = Math.min(report.indexNanos, grid);
+                report.linearNanos = Math.min(report.linearNanos, linear);
+            }
+        }
+
+        // Compare the full results once, outside the timing
+        for (int i = 0; i < queryCount; i++) {
+            linearQuery(table, index, latitudes[i], longitudes[i], distances[i], result);
+            int[] expected = sortedSlots(result);
+            index.queryRadius(latitudes[i], longitudes[i], distances[i], result);
+            if (indexed[i] != scanned[i] || !Arrays.equals(expected, sortedSlots(result))) {
+                report.mismatches++;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Replay a walk through clusters of fences with
+     * {@link LocationScheduleReplay}, comparing a fixed update interval
+     * with {@link LocationUpdateScheduler}. The walk heads north at
+     * {@code speed} from 2 km south of the first cluster, one track point
+     * a second with a few meters of jitter; the clusters are 5 km apart
+     * along its path, each with fences of 30 to 100 m radius over about
+     * 500 m.
+     *
+     * @param clusters The number of clusters
+     * @param fencesPerCluster The number of fences in each cluster
+     * @param speed Walking speed in meters per second
+     * @param durationSeconds Length of the walk
+     * @param fixedInterval Interval of the fixed schedule in milliseconds
+     */
+    public static LocationScheduleReplay.Report compareSchedules(int clusters,
+            int fencesPerCluster, double speed, int durationSeconds, long fixedInterval) {
+        Random random = new Random(SEED);
+        double clusterSpacing = 5000 / GeofenceEvaluator.METERS_PER_DEGREE;
+        double clusterSpan = 500 / GeofenceEvaluator.METERS_PER_DEGREE;
+        GeofenceTable table = new GeofenceTable(clusters * fencesPerCluster);
+        for (int c = 0; c < clusters; c++) {
+            for (int i = 0; i < fencesPerCluster; i++) {
+                table.add(new SimpleGeofence(
+                        "cluster-" + c + "-" + i,
+                        CENTER_LATITUDE + c * clusterSpacing + random.nextDouble() * clusterSpan,
+                        CENTER_LONGITUDE + random.nextDouble() * clusterSpan,
+                        30 + random.nextInt(70),
+                        Geofence.NEVER_EXPIRE,
+                        Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT,
+                        "msg-" + c + "-" + i));
+            }
+        }
+        GeofenceGridIndex index = new GeofenceGridIndex(table);
+        index.rebuild();
+
+        long[] times = new long[durationSeconds];
+        double[] latitudes = new double[durationSeconds];
+        double[] longitudes = new double[durationSeconds];
+        double jitter = 2.0 / GeofenceEvaluator.METERS_PER_DEGREE;
+        double latitude = CENTER_LATITUDE - 2000 / GeofenceEvaluator.METERS_PER_DEGREE;
+        double longitude = CENTER_LONGITUDE + clusterSpan / 2;
+        for (int i = 0; i < durationSeconds; i++) {
+            latitude += speed / GeofenceEvaluator.METERS_PER_DEGREE
+                    + (random.nextDouble() - 0.5) * jitter;
+            longitude += (random.nextDouble() - 0.5) * jitter;
+            times[i] = i * 1000L;
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+        return LocationScheduleReplay.replay(table, index, times, latitudes, longitudes,
+                fixedInterval);
+    }
+
+    /*
+     * The fences whose edge is within a distance of a point, testing every
+     * fence in the table
+     */
+    private static void linearQuery(GeofenceTable table, GeofenceGridIndex index,
+            double latitude, double longitude, double meters, GeofenceGridIndex.Result result) {
+        result.mSize = 0;
+        double metersPerDegreeLng = GeofenceGridIndex.metersPerDegreeLng(latitude);
+        int slots = table.getSlotCount();
+        for (int slot = 0; slot < slots; slot++) {
+            if (!table.isLive(slot)) {
+                continue;
+            }
+            double limit = meters + table.getRadius(slot);
+            if (index.distanceSquared(latitude, longitude, metersPerDegreeLng, slot)
+                    <= limit * limit) {
+                result.add(slot);
+            }
+        }
+    }
+
+    /*
+     * An order-independent digest of a query result, so the timed loops
+     * can't skip the work
+     */
+    private static int checksum(GeofenceGridIndex.Result result) {
+        int sum = result.size();
+        for (int i = 0; i < result.size(); i++) {
+            sum += result.get(i) * 0x9e3779b1;
+        }
+        return sum;
+    }
+
+    private static int[] sortedSlots(GeofenceGridIndex.Result result) {
+        int[] slots = Arrays.copyOf(result.mSlots, result.size());
+        Arrays.sort(slots);
+        return slots;
+    }
+
+    /**
+     * Synthetic fences scattered uniformly around a fixed center.
+     *
+     * @param count The number of fences
+     * @param spanDegrees Width and height of the area they're scattered
+     * over, in degrees
+     * @param maxRadius The largest fence radius in meters
+     * @param seed Seed of the positions and radii
+     */
+    static SimpleGeofence[] randomFences(int count, double spanDegrees, float maxRadius,
+            long seed) {
+        Random random = new Random(seed);
+        SimpleGeofence[] fences = new SimpleGeofence[count];
+        for (int i = 0; i < count; i++) {
+            fences[i] = new SimpleGeofence(
+                    "fence-" + i,
+                    CENTER_LATITUDE + (random.nextDouble() - 0.5) * spanDegrees,
+                    CENTER_LONGITUDE + (random.nextDouble() - 0.5) * spanDegrees,
+                    20 + random.nextFloat() * (maxRadius - 20),
+                    Geofence.NEVER_EXPIRE,
+                    Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT,
+                    "msg-" + i);
+        }
+        return fences;
+    }
+
+    /**
+     * A random walk from the center of the synthetic fences, in steps of
+     * a fixed length that turn by up to 45 degrees each.
+     *
+     * @param latitudes Filled with the latitude of each step
+     * @param longitudes Filled with the longitude of each step
+     * @param stepMeters Length of each step
+     * @param seed Seed of the turns
+     */
+    static void randomWalk(double[] latitudes, double[] longitudes, double stepMeters,
+            long seed) {
+        Random random = new Random(seed);
+        double latitude = CENTER_LATITUDE;
+        double longitude = CENTER_LONGITUDE;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        for (int i = 0; i < latitudes.length; i++) {
+            heading += (random.nextDouble() - 0.5) * Math.PI / 2;
+            latitude += stepMeters * Math.cos(heading) / GeofenceEvaluator.METERS_PER_DEGREE;
+            longitude += stepMeters * Math.sin(heading)
+                    / GeofenceGridIndex.metersPerDegreeLng(latitude);
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+    }
+
+    /**
+     * Run every benchmark and print the reports.
+     *
+     * @param args Optionally, a directory for the store files. Defaults to
+     * the temporary directory.
+     */
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+
+        System.out.println("Loading fences from the compact store file:");
+        for (LoadReport report : compareLoad(directory, new int[] {100, 1000, 10000, 50000})) {
+            System.out.println("  " + report);
+        }
+
+        System.out.println("Evaluating fixes:");
+        System.out.println("  " + measureEvaluation(10000, 2000));
+
+        System.out.println("Radius queries:");
+        System.out.println("  " + compareQueries(43000, 2000));
+
+        System.out.println("Location update schedules, 3 h walk through 3 clusters of 30:");
+        System.out.println("  " + compareSchedules(3, 30, 1.4, 3 * 3600, 5000));
+    }
+}
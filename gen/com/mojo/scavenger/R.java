@@ -294,12 +294,14 @@ containing a value of this type.
         public static final int geofence_input_error_longitude_invalid=0x7f060030;
         public static final int geofence_input_error_missing=0x7f06002e;
         public static final int geofence_input_error_radius_invalid=0x7f060031;
+        public static final int geofence_transition_dwelling=0x7f060051;
         public static final int geofence_transition_entered=0x7f060032;
         public static final int geofence_transition_error_detail=0x7f060033;
         public static final int geofence_transition_exited=0x7f060034;
         public static final int geofence_transition_invalid_type=0x7f060035;
         public static final int geofence_transition_notification_text=0x7f060036;
         public static final int geofence_transition_notification_title=0x7f060037;
+        public static final int geofence_transition_summary_title=0x7f060052;
         public static final int geofence_transition_unknown=0x7f060038;
         public static final int hello_world=0x7f060025;
         public static final int invalid_action=0x7f060039;
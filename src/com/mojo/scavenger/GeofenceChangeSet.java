@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * The geofences added, changed or removed in memory since they were last
+ * persisted.
+ *
+ * Only the latest change to each ID is kept: saving a fence and then
+ * removing it before the next persist leaves a single removal, and
+ * removing then re-adding it leaves a single save.
+ */
+public class GeofenceChangeSet {
+
+    // Geofences to be written, keyed by ID
+    private final LinkedHashMap<String, SimpleGeofence> mPuts =
+            new LinkedHashMap<String, SimpleGeofence>();
+
+    // IDs of geofences to be removed
+    private final Set<String> mClears = new HashSet<String>();
+
+    /**
+     * Record that a geofence was added or changed.
+     */
+    public synchronized void markPut(SimpleGeofence geofence) {
+        mClears.remove(geofence.getId());
+        mPuts.put(geofence.getId(), geofence);
+    }
+
+    /**
+     * Record that a geofence was removed.
+     */
+    public synchronized void markCleared(String id) {
+        mPuts.remove(id);
+        mClears.add(id);
+    }
+
+    /**
+     * @return {@code true} if nothing changed since the last {@link #clear()}
+     */
+    public synchronized boolean isEmpty() {
+        return mPuts.isEmpty() && mClears.isEmpty();
+    }
+
+    /**
+     * @return The number of geofences to be written or removed
+     */
+    public synchronized int size() {
+        return mPuts.size() + mClears.size();
+    }
+
+    /**
+     * @return A copy of the geofences to be written
+     */
+    public synchronized Collection<SimpleGeofence> getPuts() {
+        return new ArrayList<SimpleGeofence>(mPuts.values());
+    }
+
+    /**
+     * @return A copy of the IDs of geofences to be removed
+     */
+    public synchronized Set<String> getClears() {
+        return new HashSet<String>(mClears);
+    }
+
+    /**
+     * Forget all recorded changes, typically once they have been persisted.
+     */
+    public synchronized void clear() {
+        mPuts.clear();
+        mClears.clear();
+    }
+}
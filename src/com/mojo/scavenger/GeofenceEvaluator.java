@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * Tests location fixes against every fence in a {@link GeofenceTable} and
+ * reports ENTER and EXIT transitions with the same
+ * {@code Geofence.GEOFENCE_TRANSITION_*} codes Location Services uses,
+ * without registering anything with Location Services.
+ *
+ * A fix is inside a fence when its distance to the center is at most the
+ * radius. When the distance is within the fix's accuracy of the radius the
+ * fix can't tell, and the fence keeps its previous state. Transitions are
+ * only reported for the types each fence asked for.
+ *
+ * Each fence runs a small state machine so a jittery fix near a boundary
+ * doesn't flap between ENTER and EXIT:
+ * <ul>
+ * <li>Leaving takes a fix past the radius plus a hysteresis margin.</li>
+ * <li>A change of side is only reported once every clear fix for the
+ * minimum dwell time agreed; a clear fix on the old side cancels it.</li>
+ * <li>A fence entered and not left for the loitering time reports
+ * {@link #GEOFENCE_TRANSITION_DWELL} once, if it asked for it.</li>
+ * </ul>
+ * The state is a byte of flags and two timestamps per slot, so it costs
+ * 17 bytes per fence plus the ID reference used to spot slot reuse.
+ *
+ * Fixes are evaluated incrementally. An odometer adds up how far the
+ * player moved between fixes, plus any change of accuracy since that
+ * shifts the thresholds just as far. Testing a fence yields its slack,
+ * how far the odometer can run before the fence could change state, and
+ * the fence goes into a min-heap keyed by odometer reading at that point.
+ * A fix only tests the fences whose reading has come due, so a short move
+ * costs about the same whatever the number of fences. Fences waiting out a
+ * dwell or loitering time have no slack and are tested on every fix. Any
+ * change to the table, or to the settings, makes the next fix test every
+ * fence again.
+ *
+ * Evaluating a fix allocates nothing once the arrays have grown:
+ * distances use an equirectangular projection around the fix, which is
+ * accurate to well under a meter at geofence scales.
+ */
+public class GeofenceEvaluator {
+
+    /**
+     * Receives the transitions found while evaluating a fix.
+     */
+    public interface TransitionListener {
+        /**
+         * @param transition {@code Geofence.GEOFENCE_TRANSITION_ENTER},
+         * {@code Geofence.GEOFENCE_TRANSITION_EXIT} or
+         * {@link GeofenceEvaluator#GEOFENCE_TRANSITION_DWELL}
+         * @param table The table holding the fence
+         * @param slot The fence's slot in the table
+         */
+        void onGeofenceTransition(int transition, GeofenceTable table, int slot);
+    }
+
+    /**
+     * Transition reported when the player stays in a fence for the
+     * loitering time. Same bit as the dwell transition of later Location
+     * Services releases, so it can share a fence's transition type mask.
+     */
+    public static final int GEOFENCE_TRANSITION_DWELL = 4;
+
+    // Defaults for the state machine
+    public static final float DEFAULT_HYSTERESIS_METERS = 10;
+    public static final long DEFAULT_DWELL_MS = 5000;
+    public static final long DEFAULT_LOITER_MS = 60000;
+
+    // Mean Earth radius in meters
+    static final double EARTH_RADIUS = 6371008.8;
+
+    // Meters per degree of latitude
+    static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180.0;
+
+    // State flags: confirmed inside, change of side pending, dwell reported
+    private static final byte INSIDE = 1;
+    private static final byte PENDING = 2;
+    private static final byte DWELT = 4;
+
+    // Slack given up to cover projection error, in meters
+    private static final double SLACK_MARGIN = 1;
+
+    private final GeofenceTable mTable;
+
+    private float mHysteresis = DEFAULT_HYSTERESIS_METERS;
+    private long mDwellTime = DEFAULT_DWELL_MS;
+    private long mLoiterTime = DEFAULT_LOITER_MS;
+
+    // Per slot: state flags, when the pending change was first seen, and
+    // when the fence was entered
+    private byte[] mStates = new byte[0];
+    private long[] mPendingSince = new long[0];
+    private long[] mEnteredAt = new long[0];
+
+    // The ID each slot held when its state was recorded, to spot reuse
+    private String[] mStateIds = new String[0];
+
+    // Odometer, and the fix it was last advanced to
+    private double mOdometer;
+    private double mLastLatitude;
+    private double mLastLongitude;
+    private float mLastAccuracy;
+
+    // Table modification count the heap was built for, or -1 to rebuild
+    private int mModCount = -1;
+
+    // Min-heap of slots keyed by the odometer reading they come due at
+    private double[] mHeapKeys = new double[0];
+    private int[] mHeapSlots = new int[0];
+    private int mHeapCount = 0;
+
+    // Slots that came due on the current fix
+    private int[] mDue = new int[0];
+
+    public GeofenceEvaluator(GeofenceTable table) {
+        mTable = table;
+    }
+
+    /**
+     * @param meters Distance past the radius a fix must be to leave a fence
+     */
+    public void setHysteresis(float meters) {
+        mHysteresis = meters;
+        invalidate();
+    }
+
+    /**
+     * @param millis How long fixes must agree before a change of side is
+     * reported, or 0 to report on the first clear fix
+     */
+    public void setDwellTime(long millis) {
+        mDwellTime = millis;
+        invalidate();
+    }
+
+    /**
+     * @param millis How long after entering a fence to report
+     * {@link #GEOFENCE_TRANSITION_DWELL}, or 0 to never report it
+     */
+    public void setLoiterTime(long millis) {
+        mLoiterTime = millis;
+        invalidate();
+    }
+
+    /**
+     * Test every fence on the next fix, rather than only those that came
+     * due. Table changes do this automatically.
+     */
+    public void invalidate() {
+        mModCount = -1;
+    }
+
+    /**
+     * Test a fix against every fence and report transitions.
+     *
+     * @param latitude Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param accuracy Accuracy radius of the fix in meters, or 0 if unknown
+     * @param time Time of the fix in milliseconds, from a clock that never
+     * goes back
+     * @param listener Receives each transition
+     * @return The number of transitions reported
+     */
+    public int evaluate(double latitude, double longitude, float accuracy, long time,
+            TransitionListener listener) {
+        GeofenceTable table = mTable;
+        double metersPerDegreeLng = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        int transitions = 0;
+
+        if (mModCount != table.mModCount) {
+            // Start over: test every fence and rebuild the heap
+            int slots = table.mSlotCount;
+            ensureCapacity(slots);
+            mModCount = table.mModCount;
+            mOdometer = 0;
+            mHeapCount = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (table.mLive[slot]) {
+                    transitions += evaluateSlot(slot, latitude, longitude, metersPerDegreeLng,
+                            accuracy, time, listener);
+                }
+            }
+        } else {
+            double dy = (latitude - mLastLatitude) * METERS_PER_DEGREE;
+            double dx = (longitude - mLastLongitude) * metersPerDegreeLng;
+            mOdometer += Math.sqrt(dx * dx + dy * dy) + Math.abs(accuracy - mLastAccuracy);
+
+            // Take every due slot off the heap first, since testing one puts
+            // it back and it may be due again at once
+            int due = 0;
+            while (mHeapCount > 0 && mHeapKeys[0] <= mOdometer) {
+                mDue[due++] = mHeapSlots[0];
+                pop();
+            }
+            for (int i = 0; i < due; i++) {
+                int slot = mDue[i];
+                if (table.mLive[slot]) {
+                    transitions += evaluateSlot(slot, latitude, longitude, metersPerDegreeLng,
+                            accuracy, time, listener);
+                }
+            }
+        }
+
+        mLastLatitude = latitude;
+        mLastLongitude = longitude;
+        mLastAccuracy = accuracy;
+        return transitions;
+    }
+
+    /*
+     * Test one fence against a fix, report any transition, and put the
+     * fence back on the heap at its new slack
+     *
+     * @return 1 if a transition was reported, or 0
+     */
+    private int evaluateSlot(int slot, double latitude, double longitude,
+            double metersPerDegreeLng, float accuracy, long time, TransitionListener listener) {
+        GeofenceTable table = mTable;
+
+        // A reused slot starts outside
+        if (mStateIds[slot] != table.mIds[slot]) {
+            mStateIds[slot] = table.mIds[slot];
+            mStates[slot] = 0;
+        }
+
+        double dy = (table.mLatitudes[slot] - latitude) * METERS_PER_DEGREE;
+        double dLng = table.mLongitudes[slot] - longitude;
+        if (dLng > 180.0) {
+            dLng -= 360.0;
+        } else if (dLng < -180.0) {
+            dLng += 360.0;
+        }
+        double dx = dLng * metersPerDegreeLng;
+        double distance = Math.sqrt(dx * dx + dy * dy);
+
+        // Only fixes clearly inside or clearly outside count
+        double radius = table.mRadii[slot];
+        double inner = radius - accuracy;
+        double outer = radius + accuracy + mHysteresis;
+        boolean clearlyIn = inner > 0 && distance <= inner;
+        boolean clearlyOut = distance > outer;
+
+        int transition = step(slot, clearlyIn, clearlyOut, time);
+        int reported = 0;
+        if (transition != 0 && (table.mTransitionTypes[slot] & transition) != 0) {
+            reported = 1;
+            listener.onGeofenceTransition(transition, table, slot);
+        }
+
+        // How far the player can go before a fix could start a change of
+        // side. Fences waiting on the clock are due on every fix.
+        byte state = mStates[slot];
+        double slack;
+        if ((state & PENDING) != 0) {
+            slack = 0;
+        } else if ((state & INSIDE) != 0) {
+            boolean loitering = (state & DWELT) == 0 && mLoiterTime > 0
+                    && (table.mTransitionTypes[slot] & GEOFENCE_TRANSITION_DWELL) != 0;
+            slack = loitering ? 0 : outer - distance;
+        } else {
+            slack = distance - inner;
+        }
+        push(slot, mOdometer + Math.max(slack - SLACK_MARGIN, 0));
+        return reported;
+    }
+
+    /**
+     * @return {@code true} if the fence in a slot was last confirmed entered
+     */
+    public boolean isInside(int slot) {
+        return slot < mStates.length && (mStates[slot] & INSIDE) != 0
+                && mStateIds[slot] == mTable.mIds[slot];
+    }
+
+    /*
+     * Advance the state machine of one fence
+     *
+     * @return The transition to report, or 0
+     */
+    private int step(int slot, boolean clearlyIn, boolean clearlyOut, long time) {
+        byte state = mStates[slot];
+        boolean inside = (state & INSIDE) != 0;
+
+        // A clear fix on the confirmed side cancels a pending change
+        if (inside ? clearlyIn : clearlyOut) {
+            state &= ~PENDING;
+            if (inside && (state & DWELT) == 0 && mLoiterTime > 0
+                    && time - mEnteredAt[slot] >= mLoiterTime) {
+                mStates[slot] = (byte) (state | DWELT);
+                return GEOFENCE_TRANSITION_DWELL;
+            }
+            mStates[slot] = state;
+            return 0;
+        }
+        if (!(inside ? clearlyOut : clearlyIn)) {
+            return 0;
+        }
+
+        // A clear fix on the other side starts or confirms a change
+        if ((state & PENDING) == 0) {
+            mPendingSince[slot] = time;
+            if (mDwellTime > 0) {
+                mStates[slot] = (byte) (state | PENDING);
+                return 0;
+            }
+        } else if (time - mPendingSince[slot] < mDwellTime) {
+            return 0;
+        }
+
+        if (inside) {
+            mStates[slot] = 0;
+            return Geofence.GEOFENCE_TRANSITION_EXIT;
+        }
+        mStates[slot] = INSIDE;
+        mEnteredAt[slot] = mPendingSince[slot];
+        return Geofence.GEOFENCE_TRANSITION_ENTER;
+    }
+
+    private void push(int slot, double key) {
+        int i = mHeapCount++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mHeapKeys[parent] <= key) {
+                break;
+            }
+            mHeapKeys[i] = mHeapKeys[parent];
+            mHeapSlots[i] = mHeapSlots[parent];
+            i = parent;
+        }
+        mHeapKeys[i] = key;
+        mHeapSlots[i] = slot;
+    }
+
+    private void pop() {
+        int count = --mHeapCount;
+        double key = mHeapKeys[count];
+        int slot = mHeapSlots[count];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= count) {
+                break;
+            }
+            if (child + 1 < count && mHeapKeys[child + 1] < mHeapKeys[child]) {
+                child++;
+            }
+            if (key <= mHeapKeys[child]) {
+                break;
+            }
+            mHeapKeys[i] = mHeapKeys[child];
+            mHeapSlots[i] = mHeapSlots[child];
+            i = child;
+        }
+        mHeapKeys[i] = key;
+        mHeapSlots[i] = slot;
+    }
+
+    private void ensureCapacity(int slots) {
+        if (mHeapSlots.length < slots) {
+            int capacity = Math.max(slots, mHeapSlots.length * 2);
+            mHeapKeys = new double[capacity];
+            mHeapSlots = new int[capacity];
+            mDue = new int[capacity];
+        }
+        if (mStates.length < slots) {
+            int capacity = Math.max(slots, mStates.length * 2);
+            byte[] states = new byte[capacity];
+            long[] pendingSince = new long[capacity];
+            long[] enteredAt = new long[capacity];
+            String[] stateIds = new String[capacity];
+            System.arraycopy(mStates, 0, states, 0, mStates.length);
+            System.arraycopy(mPendingSince, 0, pendingSince, 0, mPendingSince.length);
+            System.arraycopy(mEnteredAt, 0, enteredAt, 0, mEnteredAt.length);
+            System.arraycopy(mStateIds, 0, stateIds, 0, mStateIds.length);
+            mStates = states;
+            mPendingSince = pendingSince;
+            mEnteredAt = enteredAt;
+            mStateIds = stateIds;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the fences of a {@link GeofenceTable}, on a uniform
+ * latitude/longitude grid.
+ *
+ * Each fence is filed under the grid cell holding its center. A query
+ * visits only the cells within reach of its area, widened by the largest
+ * fence radius seen, then checks each candidate exactly. Cells are found
+ * through an open-addressing table of primitive cell keys, and each cell
+ * is an intrusive linked list threaded through a per-slot array, so adding,
+ * removing and querying allocate nothing once the arrays have grown.
+ *
+ * Fences are indexed by table slot. Call {@link #add(int)} after adding or
+ * changing a fence in the table, and {@link #remove(int)} before removing
+ * it. Not thread safe.
+ */
+public class GeofenceGridIndex {
+
+    /**
+     * A reusable list of slots filled by a query.
+     */
+    public static final class Result {
+        int[] mSlots = new int[32];
+        int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        public int get(int index) {
+            return mSlots[index];
+        }
+
+        void add(int slot) {
+            if (mSize == mSlots.length) {
+                mSlots = Arrays.copyOf(mSlots, mSize * 2);
+            }
+            mSlots[mSize++] = slot;
+        }
+    }
+
+    // Default cell size, about 1.1 km of latitude
+    public static final double DEFAULT_CELL_DEGREES = 0.01;
+
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    private final GeofenceTable mTable;
+    private final double mCellDegrees;
+
+    // Number of longitude cells around the globe
+    private final int mLngCells;
+
+    // Open-addressing table from cell key to the first slot in the cell + 1
+    private long[] mCellKeys = new long[64];
+    private int[] mCellHeads = new int[64];
+    private int mCellCount = 0;
+
+    // Per slot: next slot in the same cell + 1, and the slot's cell key
+    private int[] mNext = new int[0];
+    private long[] mSlotCells = new long[0];
+    private boolean[] mIndexed = new boolean[0];
+
+    // Largest radius of any fence added, which bounds query reach
+    private double mMaxRadius = 0;
+
+    public GeofenceGridIndex(GeofenceTable table) {
+        this(table, DEFAULT_CELL_DEGREES);
+    }
+
+    public GeofenceGridIndex(GeofenceTable table, double cellDegrees) {
+        mTable = table;
+        mCellDegrees = cellDegrees;
+        mLngCells = (int) Math.ceil(360.0 / cellDegrees);
+        Arrays.fill(mCellKeys, EMPTY_KEY);
+    }
+
+    /**
+     * Index every live fence in the table, replacing the current contents.
+     */
+    public void rebuild() {
+        Arrays.fill(mCellKeys, EMPTY_KEY);
+        Arrays.fill(mCellHeads, 0);
+        Arrays.fill(mIndexed, false);
+        mCellCount = 0;
+        mMaxRadius = 0;
+        for (int slot = 0; slot < mTable.mSlotCount; slot++) {
+            if (mTable.mLive[slot]) {
+                add(slot);
+            }
+        }
+    }
+
+    /**
+     * Index the fence in a slot, or re-index it if it moved.
+     */
+    public void add(int slot) {
+        if (slot < mIndexed.length && mIndexed[slot]) {
+            remove(slot);
+        }
+        ensureSlotCapacity(slot + 1);
+
+        long key = cellKey(latCell(mTable.mLatitudes[slot]), lngCell(mTable.mLongitudes[slot]));
+        int entry = findOrInsertCell(key);
+        mNext[slot] = mCellHeads[entry];
+        mCellHeads[entry] = slot + 1;
+        mSlotCells[slot] = key;
+        mIndexed[slot] = true;
+        mMaxRadius = Math.max(mMaxRadius, mTable.mRadii[slot]);
+    }
+
+    /**
+     * Drop the fence in a slot from the index.
+     */
+    public void remove(int slot) {
+        if (slot < 0 || slot >= mIndexed.length || !mIndexed[slot]) {
+            return;
+        }
+        int entry = findCell(mSlotCells[slot]);
+        int previous = -1;
+        for (int current = mCellHeads[entry] - 1; current >= 0; current = mNext[current] - 1) {
+            if (current == slot) {
+                if (previous < 0) {
+                    mCellHeads[entry] = mNext[slot];
+                } else {
+                    mNext[previous] = mNext[slot];
+                }
+                break;
+            }
+            previous = current;
+        }
+        mIndexed[slot] = false;
+    }
+
+    /**
+     * Find the fences whose boundary lies within a distance of a point,
+     * including every fence that contains the point.
+     *
+     * @param latitude Latitude of the point
+     * @param longitude Longitude of the point
+     * @param meters Distance from the point to a fence's edge
+     * @param result Cleared, then filled with the matching slots
+     */
+    public void queryRadius(double latitude, double longitude, double meters, Result result) {
+        result.mSize = 0;
+        double reach = meters + mMaxRadius;
+        double metersPerDegreeLng = metersPerDegreeLng(latitude);
+        double dLat = reach / GeofenceEvaluator.METERS_PER_DEGREE;
+        double dLng = metersPerDegreeLng > 0 ? reach / metersPerDegreeLng : 360.0;
+
+        int minLat = latCell(Math.max(latitude - dLat, -90.0));
+        int maxLat = latCell(Math.min(latitude + dLat, 90.0));
+        int minLng = lngCell(longitude - Math.min(dLng, 180.0));
+        int lngSpan = dLng >= 180.0 ? mLngCells : (int) Math.ceil(2 * dLng / mCellDegrees) + 1;
+
+        for (int latCell = minLat; latCell <= maxLat; latCell++) {
+            for (int i = 0; i < Math.min(lngSpan, mLngCells); i++) {
+                int entry = findCell(cellKey(latCell, (minLng + i) % mLngCells));
+                if (entry < 0) {
+                    continue;
+                }
+                for (int slot = mCellHeads[entry] - 1; slot >= 0; slot = mNext[slot] - 1) {
+                    double limit = meters + mTable.mRadii[slot];
+                    if (distanceSquared(latitude, longitude, metersPerDegreeLng, slot)
+                            <= limit * limit) {
+                        result.add(slot);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the fences whose center lies inside a latitude/longitude box.
+     * A box with {@code west > east} crosses the antimeridian.
+     *
+     * @param result Cleared, then filled with the matching slots
+     */
+    public void queryBox(double south, double west, double north, double east, Result result) {
+        result.mSize = 0;
+        boolean wraps = west > east;
+        int minLat = latCell(south);
+        int maxLat = latCell(north);
+        int minLng = lngCell(west);
+        int maxLng = lngCell(east);
+        int lngSpan = (maxLng - minLng + mLngCells) % mLngCells + 1;
+
+        // A box that spans every longitude cell may have both edges in the
+        // same cell, as -180 and 180 do
+        if ((wraps && lngSpan == 1) || (!wraps && east - west >= 360.0 - mCellDegrees)) {
+            lngSpan = mLngCells;
+        }
+
+        for (int latCell = minLat; latCell <= maxLat; latCell++) {
+            for (int i = 0; i < lngSpan; i++) {
+                int entry = findCell(cellKey(latCell, (minLng + i) % mLngCells));
+                if (entry < 0) {
+                    continue;
+                }
+                for (int slot = mCellHeads[entry] - 1; slot >= 0; slot = mNext[slot] - 1) {
+                    double lat = mTable.mLatitudes[slot];
+                    double lng = mTable.mLongitudes[slot];
+                    boolean inLng = wraps ? (lng >= west || lng <= east) : (lng >= west && lng <= east);
+                    if (lat >= south && lat <= north && inLng) {
+                        result.add(slot);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The largest radius of any fence added since the last rebuild
+     */
+    public double getMaxRadius() {
+        return mMaxRadius;
+    }
+
+    /*
+     * Squared distance in meters from a point to the center of a fence
+     */
+    double distanceSquared(double latitude, double longitude, double metersPerDegreeLng, int slot) {
+        double dy = (mTable.mLatitudes[slot] - latitude) * GeofenceEvaluator.METERS_PER_DEGREE;
+        double dLng = mTable.mLongitudes[slot] - longitude;
+        if (dLng > 180.0) {
+            dLng -= 360.0;
+        } else if (dLng < -180.0) {
+            dLng += 360.0;
+        }
+        double dx = dLng * metersPerDegreeLng;
+        return dx * dx + dy * dy;
+    }
+
+    static double metersPerDegreeLng(double latitude) {
+        return GeofenceEvaluator.METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+
+    private int latCell(double latitude) {
+        return (int) Math.floor((latitude + 90.0) / mCellDegrees);
+    }
+
+    private int lngCell(double longitude) {
+        int cell = (int) Math.floor((longitude + 180.0) / mCellDegrees) % mLngCells;
+        return cell < 0 ? cell + mLngCells : cell;
+    }
+
+    private static long cellKey(int latCell, int lngCell) {
+        return ((long) latCell << 32) | (lngCell & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /*
+     * @return The table entry of a cell, or -1 if the cell was never used
+     */
+    private int findCell(long key) {
+        int mask = mCellKeys.length - 1;
+        for (int i = hash(key) & mask; mCellKeys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+            if (mCellKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Cells stay in the table once used, possibly empty, so they are never
+     * deleted and lookups need no tombstones
+     */
+    private int findOrInsertCell(long key) {
+        int entry = findCell(key);
+        if (entry >= 0) {
+            return entry;
+        }
+        if ((mCellCount + 1) * 2 > mCellKeys.length) {
+            long[] oldKeys = mCellKeys;
+            int[] oldHeads = mCellHeads;
+            mCellKeys = new long[oldKeys.length * 2];
+            mCellHeads = new int[oldKeys.length * 2];
+            Arrays.fill(mCellKeys, EMPTY_KEY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY_KEY) {
+                    int j = emptyEntry(oldKeys[i]);
+                    mCellKeys[j] = oldKeys[i];
+                    mCellHeads[j] = oldHeads[i];
+                }
+            }
+        }
+        entry = emptyEntry(key);
+        mCellKeys[entry] = key;
+        mCellHeads[entry] = 0;
+        mCellCount++;
+        return entry;
+    }
+
+    private int emptyEntry(long key) {
+        int mask = mCellKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mCellKeys[i] != EMPTY_KEY) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void ensureSlotCapacity(int slots) {
+        if (mIndexed.length < slots) {
+            int capacity = Math.max(slots, mIndexed.length * 2);
+            mNext = Arrays.copyOf(mNext, capacity);
+            mSlotCells = Arrays.copyOf(mSlotCells, capacity);
+            mIndexed = Arrays.copyOf(mIndexed, capacity);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows geofences in a list, one {@link R.layout#simple_list_entry_1} row
+ * each.
+ *
+ * The label of a row is the geofence's {@link SimpleGeofence#getLabel()},
+ * which is formatted once and cached by the geofence;
+ * {@link GeofenceRestoreTask} formats restored geofences on its worker
+ * thread. Rows are recycled through a view holder, so binding a row
+ * allocates nothing.
+ *
+ * ListView has no notifications for single inserts or removals, so every
+ * change calls {@link #notifyDataSetChanged()} once, however many rows it
+ * touches. Item IDs are stable per geofence, which lets the list keep its
+ * scroll position and selection across changes, including reorders by
+ * {@link #setAll}. The item IDs live in one map that every change
+ * updates in place, so re-ranking rows that are already shown allocates
+ * nothing per row.
+ *
+ * For the UI thread only.
+ */
+public class GeofenceListAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+
+    // Rows
+    private final ArrayList<SimpleGeofence> mGeofences = new ArrayList<SimpleGeofence>();
+
+    // Stable item IDs of the geofences in the rows
+    private final HashMap<SimpleGeofence, ItemId> mItemIds =
+            new HashMap<SimpleGeofence, ItemId>();
+
+    private long mNextItemId = 0;
+
+    // Incremented by every setAll(), to find the IDs of rows it dropped
+    private int mGeneration = 0;
+
+    /*
+     * The item ID of one geofence, and the last setAll() that showed it
+     */
+    private static class ItemId {
+        final long id;
+        int generation;
+
+        ItemId(long id, int generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+
+    /*
+     * The views of one row, kept in its tag
+     */
+    private static class ViewHolder {
+        TextView label;
+    }
+
+    public GeofenceListAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Add geofences at the end of the list.
+     */
+    public void addAll(SimpleGeofence[] geofences) {
+        if (geofences.length == 0) {
+            return;
+        }
+        mGeofences.ensureCapacity(mGeofences.size() + geofences.length);
+        for (SimpleGeofence geofence : geofences) {
+            append(geofence);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Replace every row. Geofences that were already shown keep their
+     * item IDs.
+     *
+     * @param geofences The new rows
+     * @param count The number of rows in the array
+     */
+    public void setAll(SimpleGeofence[] geofences, int count) {
+        int generation = ++mGeneration;
+        mGeofences.clear();
+        mGeofences.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            ItemId itemId = mItemIds.get(geofences[i]);
+            if (itemId != null) {
+                itemId.generation = generation;
+            } else {
+                mItemIds.put(geofences[i], new ItemId(mNextItemId++, generation));
+            }
+            mGeofences.add(geofences[i]);
+        }
+
+        // Drop the IDs of rows that are gone
+        if (mItemIds.size() > count) {
+            Iterator<ItemId> it = mItemIds.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().generation != generation) {
+                    it.remove();
+                }
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Add a geofence at the end of the list.
+     */
+    public void add(SimpleGeofence geofence) {
+        append(geofence);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Remove the row at a position.
+     */
+    public void remove(int position) {
+        mItemIds.remove(mGeofences.remove(position));
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Remove every row.
+     */
+    public void clear() {
+        if (mGeofences.isEmpty()) {
+            return;
+        }
+        mGeofences.clear();
+        mItemIds.clear();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mGeofences.size();
+    }
+
+    @Override
+    public SimpleGeofence getItem(int position) {
+        return mGeofences.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItemIds.get(mGeofences.get(position)).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.simple_list_entry_1, parent, false);
+            holder = new ViewHolder();
+            holder.label = (TextView) convertView;
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        holder.label.setText(mGeofences.get(position).getLabel());
+        return convertView;
+    }
+
+    private void append(SimpleGeofence geofence) {
+        mItemIds.put(geofence, new ItemId(mNextItemId++, mGeneration));
+        mGeofences.add(geofence);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * Fixed-width binary encoding of a {@link SimpleGeofence}.
+ *
+ * Every record occupies exactly {@link #SIZE} bytes, so a file of records
+ * can be addressed by slot number alone:
+ *
+ * <pre>
+ *   0  flags      (1 byte, FLAG_LIVE when the slot holds a fence)
+ *   1  id length  (1 byte)
+ *   2  msgId len  (1 byte)
+ *   3  reserved   (1 byte)
+ *   4  latitude   (double)
+ *  12  longitude  (double)
+ *  20  radius     (float)
+ *  24  expiration (long)
+ *  32  transition (int)
+ *  36  id         (MAX_ID_BYTES of UTF-8, zero padded)
+ * 100  msgId      (MAX_MSGID_BYTES of UTF-8, zero padded)
+ * </pre>
+ */
+final class GeofenceRecord {
+
+    // Maximum encoded length of a geofence request ID
+    static final int MAX_ID_BYTES = 64;
+
+    // Maximum encoded length of a message ID
+    static final int MAX_MSGID_BYTES = 32;
+
+    // Size of one record in bytes
+    static final int SIZE = 36 + MAX_ID_BYTES + MAX_MSGID_BYTES;
+
+    // Flag values for the first byte of a record
+    static final byte FLAG_FREE = 0;
+    static final byte FLAG_LIVE = 1;
+
+    // Ids and message ids are always stored as UTF-8
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] ZEROS = new byte[MAX_ID_BYTES];
+
+    private GeofenceRecord() {
+    }
+
+    /**
+     * @return {@code true} if the geofence's id and message id fit in a
+     * record
+     */
+    static boolean fits(SimpleGeofence geofence) {
+        return geofence.getId().getBytes(UTF8).length <= MAX_ID_BYTES
+                && geofence.getMsgId().getBytes(UTF8).length <= MAX_MSGID_BYTES;
+    }
+
+    /**
+     * @return The first geofence whose id or message id doesn't fit in a
+     * record, or {@code null} if they all fit
+     */
+    static SimpleGeofence findMisfit(Collection<SimpleGeofence> geofences) {
+        for (SimpleGeofence geofence : geofences) {
+            if (!fits(geofence)) {
+                return geofence;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a geofence as one record at the buffer's current position and
+     * advances the position by {@link #SIZE}.
+     *
+     * @throws IllegalArgumentException if the id or message id does not
+     * fit, see {@link #fits}
+     */
+    static void write(ByteBuffer buf, SimpleGeofence geofence) {
+        byte[] id = encode(geofence.getId(), MAX_ID_BYTES);
+        byte[] msgId = encode(geofence.getMsgId(), MAX_MSGID_BYTES);
+
+        buf.put(FLAG_LIVE);
+        buf.put((byte) id.length);
+        buf.put((byte) msgId.length);
+        buf.put((byte) 0);
+        buf.putDouble(geofence.getLatitude());
+        buf.putDouble(geofence.getLongitude());
+        buf.putFloat(geofence.getRadius());
+        buf.putLong(geofence.getExpirationDuration());
+        buf.putInt(geofence.getTransitionType());
+        buf.put(id);
+        buf.put(ZEROS, 0, MAX_ID_BYTES - id.length);
+        buf.put(msgId);
+        buf.put(ZEROS, 0, MAX_MSGID_BYTES - msgId.length);
+    }
+
+    /**
+     * Reads one record at the buffer's current position and advances the
+     * position by {@link #SIZE}.
+     *
+     * @return The stored geofence, or {@code null} if the slot is free
+     */
+    static SimpleGeofence read(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.get(start) != FLAG_LIVE) {
+            buf.position(start + SIZE);
+            return null;
+        }
+        buf.position(start + 1);
+        int idLength = buf.get() & 0xff;
+        int msgIdLength = buf.get() & 0xff;
+        buf.get();
+        double latitude = buf.getDouble();
+        double longitude = buf.getDouble();
+        float radius = buf.getFloat();
+        long expiration = buf.getLong();
+        int transition = buf.getInt();
+        String id = decode(buf, idLength, MAX_ID_BYTES);
+        String msgId = decode(buf, msgIdLength, MAX_MSGID_BYTES);
+
+        return new SimpleGeofence(
+                id, latitude, longitude, radius, expiration, transition, msgId);
+    }
+
+    /**
+     * Reads only the id of the record at the buffer's current position,
+     * leaving the position unchanged.
+     *
+     * @return The stored id, or {@code null} if the slot is free
+     */
+    static String readId(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.get(start) != FLAG_LIVE) {
+            return null;
+        }
+        int idLength = buf.get(start + 1) & 0xff;
+        byte[] bytes = new byte[idLength];
+        for (int i = 0; i < idLength; i++) {
+            bytes[i] = buf.get(start + 36 + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private static byte[] encode(String value, int max) {
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > max) {
+            throw new IllegalArgumentException(
+                    "Value longer than " + max + " bytes: " + value);
+        }
+        return bytes;
+    }
+
+    private static String decode(ByteBuffer buf, int length, int width) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        buf.position(buf.position() + width - length);
+        return new String(bytes, UTF8);
+    }
+}
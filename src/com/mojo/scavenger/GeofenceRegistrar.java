@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.LocationClient;
+import com.google.android.gms.location.LocationClient.OnAddGeofencesResultListener;
+import com.google.android.gms.location.LocationClient.OnRemoveGeofencesResultListener;
+import com.google.android.gms.location.LocationStatusCodes;
+
+/**
+ * Keeps the geofences registered with Location Services in line with the
+ * geofences that should be registered.
+ *
+ * The desired set comes from a {@link NearestFenceWindow}, which picks it
+ * from the stored fences. The registrar remembers which IDs Location
+ * Services confirmed, and on each change sends only the difference:
+ * removals first, so the registered count never passes the cap, then
+ * additions, in batches of at most {@link #MAX_BATCH} fences. Only one
+ * request is in flight at a time.
+ *
+ * Until the window has reported a desired set, the registrar can't tell
+ * which registrations are stale, so it only removes fences that were
+ * deleted; a new activity instance therefore doesn't unregister and then
+ * re-add every fence.
+ *
+ * A failed batch leaves its fences in the difference, and the next attempt
+ * is scheduled with exponential backoff. The confirmed IDs are kept in
+ * their own SharedPreferences file, since registrations outlive the
+ * process.
+ *
+ * Call from the main thread only. Result callbacks arrive through the
+ * listeners passed to the constructor, which must forward them to
+ * {@link #onAddResult} and {@link #onRemoveResult}.
+ */
+public class GeofenceRegistrar implements NearestFenceWindow.WindowListener {
+
+    // Most fences sent in one add or remove call
+    public static final int MAX_BATCH = 100;
+
+    // Retry delays after a failure, doubling up to the maximum
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    // SharedPreferences file of the registrar, kept apart from the large
+    // default file so saving the IDs doesn't rewrite the stored fences
+    private static final String PREFERENCES_NAME = "GeofenceRegistrar";
+
+    // Key of the IDs Location Services confirmed as registered
+    private static final String REGISTERED_IDS_KEY = "REGISTERED_FENCE_IDS";
+
+    private final SharedPreferences mPrefs;
+    private final PendingIntent mTransitionIntent;
+    private final OnAddGeofencesResultListener mAddListener;
+    private final OnRemoveGeofencesResultListener mRemoveListener;
+    private final Handler mHandler = new Handler();
+
+    private LocationClient mLocationClient;
+
+    // Fences that should be registered, by ID
+    private final HashMap<String, Geofence> mDesired = new HashMap<String, Geofence>();
+
+    // Set once the window reported, so mDesired is complete
+    private boolean mHaveDesired = false;
+
+    // Deleted fences to unregister before mDesired is complete
+    private final HashSet<String> mDeleted = new HashSet<String>();
+
+    // IDs Location Services confirmed as registered
+    private final HashSet<String> mRegistered = new HashSet<String>();
+
+    // IDs of the request in flight, if any
+    private final HashSet<String> mInFlight = new HashSet<String>();
+    private boolean mInFlightIsRemoval;
+
+    // Backoff state
+    private long mRetryDelay = 0;
+    private boolean mRetryScheduled = false;
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            mRetryScheduled = false;
+            reconcile();
+        }
+    };
+
+    public GeofenceRegistrar(Context context, PendingIntent transitionIntent,
+            OnAddGeofencesResultListener addListener,
+            OnRemoveGeofencesResultListener removeListener) {
+        mPrefs = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mTransitionIntent = transitionIntent;
+        mAddListener = addListener;
+        mRemoveListener = removeListener;
+        mRegistered.addAll(mPrefs.getStringSet(REGISTERED_IDS_KEY,
+                Collections.<String>emptySet()));
+    }
+
+    /**
+     * Set the client requests go through, or null while there is none.
+     */
+    public void setLocationClient(LocationClient client) {
+        mLocationClient = client;
+    }
+
+    @Override
+    public void onWindowChanged(List<Geofence> added, List<String> removed) {
+        for (String id : removed) {
+            mDesired.remove(id);
+        }
+        for (Geofence geofence : added) {
+            mDesired.put(geofence.getRequestId(), geofence);
+        }
+        mHaveDesired = true;
+        mDeleted.clear();
+        reconcile();
+    }
+
+    /**
+     * Stop wanting a fence registered, for example after it was deleted.
+     */
+    public void remove(String id) {
+        if (mDesired.remove(id) != null || mRegistered.contains(id)) {
+            if (!mHaveDesired) {
+                mDeleted.add(id);
+            }
+            reconcile();
+        }
+    }
+
+    /**
+     * Send the next batch of the difference between the desired and
+     * registered fences, unless a request or retry is pending or the
+     * client isn't connected.
+     */
+    public void reconcile() {
+        if (!mInFlight.isEmpty() || mRetryScheduled
+                || mLocationClient == null || !mLocationClient.isConnected()) {
+            return;
+        }
+
+        ArrayList<String> removals = new ArrayList<String>();
+        for (String id : mRegistered) {
+            if (mHaveDesired ? !mDesired.containsKey(id) : mDeleted.contains(id)) {
+                removals.add(id);
+                if (removals.size() == MAX_BATCH) {
+                    break;
+                }
+            }
+        }
+        if (!removals.isEmpty()) {
+            mInFlight.addAll(removals);
+            mInFlightIsRemoval = true;
+            mLocationClient.removeGeofences(removals, mRemoveListener);
+            return;
+        }
+
+        ArrayList<Geofence> additions = new ArrayList<Geofence>();
+        for (Geofence geofence : mDesired.values()) {
+            if (!mRegistered.contains(geofence.getRequestId())) {
+                additions.add(geofence);
+                mInFlight.add(geofence.getRequestId());
+                if (additions.size() == MAX_BATCH) {
+                    break;
+                }
+            }
+        }
+        if (!additions.isEmpty()) {
+            mInFlightIsRemoval = false;
+            mLocationClient.addGeofences(additions, mTransitionIntent, mAddListener);
+        }
+    }
+
+    /**
+     * Record the result of an add request.
+     */
+    public void onAddResult(int statusCode, String[] geofenceRequestIds) {
+        if (mInFlightIsRemoval) {
+            return;
+        }
+        if (LocationStatusCodes.SUCCESS == statusCode) {
+            Collections.addAll(mRegistered, geofenceRequestIds);
+        } else if (LocationStatusCodes.GEOFENCE_NOT_AVAILABLE == statusCode) {
+            // Location Services dropped every registration
+            mRegistered.clear();
+        }
+        finishRequest(LocationStatusCodes.SUCCESS == statusCode);
+    }
+
+    /**
+     * Record the result of a remove-by-ID request.
+     */
+    public void onRemoveResult(int statusCode, String[] geofenceRequestIds) {
+        if (!mInFlightIsRemoval) {
+            return;
+        }
+        if (LocationStatusCodes.SUCCESS == statusCode) {
+            for (String id : geofenceRequestIds) {
+                mRegistered.remove(id);
+                mDeleted.remove(id);
+            }
+        } else if (LocationStatusCodes.GEOFENCE_NOT_AVAILABLE == statusCode) {
+            mRegistered.clear();
+            mDeleted.clear();
+        }
+        finishRequest(LocationStatusCodes.SUCCESS == statusCode);
+    }
+
+    /**
+     * @return The IDs Location Services confirmed as registered
+     */
+    public Set<String> getRegisteredIds() {
+        return Collections.unmodifiableSet(mRegistered);
+    }
+
+    /*
+     * Save the outcome of the request in flight, then send the next batch
+     * or schedule a retry
+     */
+    private void finishRequest(boolean success) {
+        mInFlight.clear();
+        mPrefs.edit()
+                .putStringSet(REGISTERED_IDS_KEY, new HashSet<String>(mRegistered))
+                .apply();
+
+        if (success) {
+            mRetryDelay = 0;
+            reconcile();
+        } else {
+            mRetryDelay = mRetryDelay == 0
+                    ? MIN_RETRY_DELAY_MS
+                    : Math.min(mRetryDelay * 2, MAX_RETRY_DELAY_MS);
+            mRetryScheduled = true;
+            mHandler.postDelayed(mRetry, mRetryDelay);
+            Log.d(GeofenceUtils.APPTAG, "Geofence registration failed, retrying in "
+                    + mRetryDelay + " ms");
+        }
+    }
+}
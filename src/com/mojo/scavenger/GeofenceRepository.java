@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * The geofences of this process, loaded once and kept warm for every
+ * activity instance and service invocation.
+ *
+ * The repository owns the in-memory set of fences, the
+ * {@link GeofenceTable} and {@link GeofenceGridIndex} built over it, the
+ * {@link LocationPipeline} run against them, and the changes not yet
+ * written to {@link SimpleGeofenceStore}. Keeping the pipeline here means
+ * the smoothed location, the fences the player is inside and the
+ * registration window survive a configuration change, so a recreated
+ * activity doesn't re-enter every fence around the player. It is
+ * loaded by a {@link GeofenceRestoreTask} the first time
+ * {@link #restore} is called; later calls hand over the fences already in
+ * memory, so an activity restart or configuration change reads no
+ * storage. A restore keeps running while no activity is attached.
+ *
+ * Adding, removing, restoring and the table, index and pipeline are for
+ * the UI thread only. {@link #getSnapshot()} may be called from any thread and
+ * returns an immutable copy of the fences.
+ */
+public class GeofenceRepository implements GeofenceRestoreTask.RestoreListener {
+
+    /**
+     * An immutable copy of the fences at one moment.
+     */
+    public static final class Snapshot {
+
+        private final List<SimpleGeofence> mGeofences;
+        private final HashMap<String, SimpleGeofence> mById;
+
+        Snapshot(List<SimpleGeofence> geofences) {
+            mGeofences = Collections.unmodifiableList(geofences);
+            mById = new HashMap<String, SimpleGeofence>(geofences.size() * 2);
+            for (SimpleGeofence geofence : geofences) {
+                mById.put(geofence.getId(), geofence);
+            }
+        }
+
+        /**
+         * @return Every fence, in the order they were added
+         */
+        public List<SimpleGeofence> getGeofences() {
+            return mGeofences;
+        }
+
+        /**
+         * @return The fence with a request ID, or {@code null} if there's none
+         */
+        public SimpleGeofence get(String id) {
+            return mById.get(id);
+        }
+
+        public int size() {
+            return mGeofences.size();
+        }
+    }
+
+    private static GeofenceRepository sInstance;
+
+    private final Context mContext;
+
+    // The fences, keyed by ID in the order they were added
+    private final LinkedHashMap<String, SimpleGeofence> mFences =
+            new LinkedHashMap<String, SimpleGeofence>();
+
+    // Built on demand, and dropped on every change
+    private Snapshot mSnapshot;
+
+    private final GeofenceTable mTable = new GeofenceTable();
+    private final GeofenceGridIndex mIndex = new GeofenceGridIndex(mTable);
+    private final LocationPipeline mPipeline = new LocationPipeline(mTable, mIndex);
+
+    // Fences added or removed since they were last stored
+    private final GeofenceChangeSet mChanges = new GeofenceChangeSet();
+
+    private boolean mLoaded = false;
+
+    // Fences removed while a restore is running, which it mustn't bring back
+    private final HashSet<String> mRemovedDuringRestore = new HashSet<String>();
+
+    private GeofenceRestoreTask mRestoreTask;
+
+    // The attached activity's listener, if any
+    private GeofenceRestoreTask.RestoreListener mListener;
+
+    private GeofenceRepository(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized GeofenceRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GeofenceRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Attach a listener and hand it every fence, loading them from storage
+     * in the background if this is the first restore in the process. Fences
+     * already in memory are delivered at once, as a single chunk.
+     *
+     * @param listener Receives the fences on the UI thread
+     */
+    public void restore(GeofenceRestoreTask.RestoreListener listener) {
+        mListener = listener;
+        List<SimpleGeofence> geofences = getSnapshot().getGeofences();
+        if (!geofences.isEmpty()) {
+            listener.onGeofencesRestored(geofences.toArray(new SimpleGeofence[geofences.size()]));
+        }
+        if (isLoaded()) {
+            listener.onRestoreFinished(geofences.size());
+        } else if (mRestoreTask == null) {
+            mRestoreTask = new GeofenceRestoreTask(mContext, this);
+            mRestoreTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * Stop delivering fences to the listener given to {@link #restore}.
+     * Loading carries on.
+     */
+    public void detach() {
+        mListener = null;
+    }
+
+    @Override
+    public void onGeofencesRestored(SimpleGeofence[] geofences) {
+        ArrayList<SimpleGeofence> restored = new ArrayList<SimpleGeofence>(geofences.length);
+        synchronized (this) {
+            for (SimpleGeofence geofence : geofences) {
+                // Fences added or removed meanwhile are newer than the
+                // stored ones
+                if (!mFences.containsKey(geofence.getId())
+                        && !mRemovedDuringRestore.contains(geofence.getId())) {
+                    mFences.put(geofence.getId(), geofence);
+                    restored.add(geofence);
+                }
+            }
+            mSnapshot = null;
+        }
+        for (SimpleGeofence geofence : restored) {
+            mIndex.add(mTable.add(geofence));
+        }
+        if (mListener != null && !restored.isEmpty()) {
+            mListener.onGeofencesRestored(restored.toArray(new SimpleGeofence[restored.size()]));
+        }
+    }
+
+    @Override
+    public void onRestoreFinished(int count) {
+        synchronized (this) {
+            mLoaded = true;
+        }
+        mRemovedDuringRestore.clear();
+        mRestoreTask = null;
+        if (mListener != null) {
+            mListener.onRestoreFinished(count);
+        }
+    }
+
+    /**
+     * @return {@code true} once every stored fence is in memory
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Add a fence, to be stored by the next {@link #persist()}.
+     */
+    public void add(SimpleGeofence geofence) {
+        boolean replaced;
+        synchronized (this) {
+            replaced = mFences.put(geofence.getId(), geofence) != null;
+            mSnapshot = null;
+        }
+        if (replaced) {
+            mIndex.remove(mTable.indexOf(geofence.getId()));
+            mTable.remove(geofence.getId());
+        }
+        mIndex.add(mTable.add(geofence));
+        mChanges.markPut(geofence);
+    }
+
+    /**
+     * Remove a fence, to be removed from storage by the next
+     * {@link #persist()}.
+     */
+    public void remove(String id) {
+        synchronized (this) {
+            if (mFences.remove(id) == null) {
+                return;
+            }
+            mSnapshot = null;
+            if (!mLoaded) {
+                mRemovedDuringRestore.add(id);
+            }
+        }
+        mIndex.remove(mTable.indexOf(id));
+        mTable.remove(id);
+        mChanges.markCleared(id);
+    }
+
+    /**
+     * Store the fences added or removed since the last call, in one
+     * background write. If the write fails, the changes are kept and
+     * retried by the next call.
+     *
+     * @return {@code false} if the changes couldn't be written
+     */
+    public boolean persist() {
+        if (!new SimpleGeofenceStore(mContext).applyChanges(mChanges, true)) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to store " + mChanges.size()
+                    + " geofence changes; keeping them for the next attempt");
+            return false;
+        }
+        mChanges.clear();
+        return true;
+    }
+
+    /**
+     * @return An immutable copy of the fences in memory. Before
+     * {@link #isLoaded()} it holds only the fences restored so far.
+     */
+    public synchronized Snapshot getSnapshot() {
+        if (mSnapshot == null) {
+            mSnapshot = new Snapshot(new ArrayList<SimpleGeofence>(mFences.values()));
+        }
+        return mSnapshot;
+    }
+
+    public GeofenceTable getTable() {
+        return mTable;
+    }
+
+    public GeofenceGridIndex getIndex() {
+        return mIndex;
+    }
+
+    public LocationPipeline getPipeline() {
+        return mPipeline;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.List;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Loads the stored geofences on a worker thread and hands them to the UI
+ * thread in chunks, so storage is never read on the UI thread and the
+ * first rows show before the rest are added.
+ *
+ * The first chunk is small, about a screenful, to get rows up quickly;
+ * later chunks are larger, to keep the number of list refreshes down.
+ * Labels are formatted one chunk at a time, so the first chunk waits only
+ * for the stored fences to be decoded, not for every label. The stores
+ * decode every fence before returning any, since the compact store only
+ * knows a fence is current once its journal is replayed. The
+ * time to the first chunk and to the last one are logged and kept for
+ * {@link #getFirstRowMillis()} and {@link #getFullLoadMillis()}.
+ *
+ * Run it with {@code executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR)}.
+ * A cancelled task delivers no further chunks.
+ */
+public class GeofenceRestoreTask extends AsyncTask<Void, SimpleGeofence, Integer> {
+
+    /**
+     * Receives the restored geofences, on the UI thread.
+     */
+    public interface RestoreListener {
+        /**
+         * @param geofences The next chunk of stored geofences
+         */
+        void onGeofencesRestored(SimpleGeofence[] geofences);
+
+        /**
+         * Called once every chunk was delivered.
+         *
+         * @param count The number of geofences restored
+         */
+        void onRestoreFinished(int count);
+    }
+
+    // Size of the first chunk, enough to fill the list on screen
+    static final int FIRST_CHUNK_SIZE = 32;
+
+    // Size of every later chunk
+    static final int CHUNK_SIZE = 256;
+
+    private final SimpleGeofenceStore mStore;
+    private final RestoreListener mListener;
+
+    private long mStart;
+    private long mFirstRowMillis = -1;
+    private long mFullLoadMillis = -1;
+
+    public GeofenceRestoreTask(Context context, RestoreListener listener) {
+        mStore = new SimpleGeofenceStore(context);
+        mListener = listener;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        mStart = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        List<SimpleGeofence> geofences = mStore.getAllGeofences();
+
+        int size = FIRST_CHUNK_SIZE;
+        for (int start = 0; start < geofences.size() && !isCancelled(); start += size) {
+            if (start > 0) {
+                size = CHUNK_SIZE;
+            }
+            int end = Math.min(start + size, geofences.size());
+            SimpleGeofence[] chunk = geofences.subList(start, end).toArray(
+                    new SimpleGeofence[end - start]);
+
+            // Format the chunk's list labels here rather than on the UI
+            // thread, and only just before it's shown
+            for (SimpleGeofence geofence : chunk) {
+                geofence.getLabel();
+            }
+            publishProgress(chunk);
+        }
+        return geofences.size();
+    }
+
+    @Override
+    protected void onProgressUpdate(SimpleGeofence... geofences) {
+        if (isCancelled()) {
+            return;
+        }
+        mListener.onGeofencesRestored(geofences);
+        if (mFirstRowMillis < 0) {
+            mFirstRowMillis = SystemClock.elapsedRealtime() - mStart;
+            Log.d(GeofenceUtils.APPTAG, "First geofences shown after " + mFirstRowMillis + " ms");
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Integer count) {
+        mFullLoadMillis = SystemClock.elapsedRealtime() - mStart;
+        if (mFirstRowMillis < 0) {
+            mFirstRowMillis = mFullLoadMillis;
+        }
+        mListener.onRestoreFinished(count);
+        Log.d(GeofenceUtils.APPTAG, "Restored " + count + " geofences in " + mFullLoadMillis
+                + " ms, first shown after " + mFirstRowMillis + " ms");
+    }
+
+    /**
+     * @return Milliseconds from the start of the restore until the first
+     * geofences were delivered, or -1 if none were yet
+     */
+    public long getFirstRowMillis() {
+        return mFirstRowMillis;
+    }
+
+    /**
+     * @return Milliseconds from the start of the restore until every
+     * geofence was delivered, or -1 if the restore hasn't finished
+     */
+    public long getFullLoadMillis() {
+        return mFullLoadMillis;
+    }
+}
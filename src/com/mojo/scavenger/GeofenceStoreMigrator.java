@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Moves stored geofences from the legacy per-field SharedPreferences keys
+ * to the compact schema of {@link SimpleGeofenceStore}, on a worker thread.
+ *
+ * Fences are streamed across in batches. Each batch is synced to the
+ * compact store before the next one starts, so the compact store itself
+ * records progress: if the process dies, the next run skips every fence
+ * that already made it across. Reads keep coming from the legacy keys
+ * until {@link SimpleGeofenceStore#finishMigration} switches the schema.
+ */
+public class GeofenceStoreMigrator implements Runnable {
+
+    // Number of fences written to the compact store per batch
+    private static final int BATCH_SIZE = 200;
+
+    // Set while a migration is running in this process
+    private static boolean sRunning = false;
+
+    // Set once this process found the fences on the compact schema
+    private static boolean sMigrated = false;
+
+    private final Context mContext;
+
+    private GeofenceStoreMigrator(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts a background migration, unless this process already found the
+     * fences on the compact schema or a migration is already running. Never
+     * touches storage: the schema version lives in the default
+     * SharedPreferences alongside every legacy key, so even reading it
+     * waits for that whole file, and the worker thread does it instead.
+     */
+    public static synchronized void startIfNeeded(Context context) {
+        if (sRunning || sMigrated) {
+            return;
+        }
+        sRunning = true;
+        Thread thread = new Thread(
+                new GeofenceStoreMigrator(context.getApplicationContext()),
+                "GeofenceStoreMigrator");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long start = SystemClock.elapsedRealtime();
+        int migrated = 0;
+        try {
+            SimpleGeofenceStore legacy = new SimpleGeofenceStore(mContext);
+            if (legacy.isMigrated()) {
+                setMigrated();
+                return;
+            }
+            JournaledGeofenceStore compact = SimpleGeofenceStore.getCompactStore(mContext);
+            if (compact == null) {
+                return;
+            }
+
+            // Fences already in the compact store were migrated by an earlier run
+            Set<String> done = compact.getStoredIDs();
+            Set<String> stored = legacy.getStoredIDs();
+            List<String> ids = stored != null
+                    ? new ArrayList<String>(stored)
+                    : Collections.<String>emptyList();
+
+            ArrayList<SimpleGeofence> batch = new ArrayList<SimpleGeofence>(BATCH_SIZE);
+            for (String id : ids) {
+                if (done.contains(id)) {
+                    continue;
+                }
+                SimpleGeofence geofence = legacy.readGeofence(id);
+                if (geofence == null) {
+                    continue;
+                }
+                batch.add(geofence);
+                if (batch.size() == BATCH_SIZE) {
+                    migrated += writeBatch(compact, batch);
+                }
+            }
+            migrated += writeBatch(compact, batch);
+
+            if (legacy.finishMigration(compact)) {
+                setMigrated();
+                Log.d(GeofenceUtils.APPTAG, "Migrated " + migrated + " geofences (skipped "
+                        + done.size() + " already migrated) in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            } else {
+                Log.e(GeofenceUtils.APPTAG, "Unable to switch geofence storage schema");
+            }
+        } finally {
+            synchronized (GeofenceStoreMigrator.class) {
+                sRunning = false;
+            }
+        }
+    }
+
+    private static synchronized void setMigrated() {
+        sMigrated = true;
+    }
+
+    /*
+     * Write and sync one batch, so it counts as progress
+     */
+    private static int writeBatch(JournaledGeofenceStore compact, List<SimpleGeofence> batch) {
+        int count = batch.size();
+        if (count > 0 && compact.putAll(batch)) {
+            compact.sync();
+        }
+        batch.clear();
+        return count;
+    }
+}
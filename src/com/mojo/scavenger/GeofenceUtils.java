@@ -71,6 +71,15 @@ public final class GeofenceUtils {
     public static final String EXTRA_GEOFENCE_STATUS =
             "com.example.android.geofence.EXTRA_GEOFENCE_STATUS";
 
+    public static final String EXTRA_GEOFENCE_TRANSITION_TYPE =
+            "com.example.android.geofence.EXTRA_GEOFENCE_TRANSITION_TYPE";
+
+    public static final String EXTRA_GEOFENCE_IDS =
+            "com.example.android.geofence.EXTRA_GEOFENCE_IDS";
+
+    public static final String EXTRA_GEOFENCE_MSG_IDS =
+            "com.example.android.geofence.EXTRA_GEOFENCE_MSG_IDS";
+
     /*
      * Keys for flattened geofences stored in SharedPreferences
      */
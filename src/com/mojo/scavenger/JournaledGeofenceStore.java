@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Storage for geofence values, implemented as an append-only journal in
+ * front of a {@link PackedGeofenceStore} snapshot.
+ *
+ * Every mutation is appended to the journal as one small fixed-width
+ * entry and applied to an in-memory copy of the fences, which serves all
+ * reads. The journal is forced to disk at most once per
+ * {@link #SYNC_DELAY_MS}, on a background thread, so a burst of marks and
+ * clears costs a single fsync. Once the journal holds
+ * {@link #COMPACT_THRESHOLD} entries it is rotated and the changes it
+ * recorded are folded into the snapshot on the same background thread.
+ *
+ * On open, the snapshot is loaded and the journal tail is replayed on top
+ * of it. A torn entry at the end of the journal, left by a crash during an
+ * append, is detected by its checksum and dropped.
+ */
+public class JournaledGeofenceStore {
+
+    // Journal entry operations
+    private static final byte OP_PUT = 1;
+    private static final byte OP_CLEAR = 2;
+
+    // Journal entry: operation, geofence record, CRC32 of both
+    private static final int ENTRY_SIZE = 1 + GeofenceRecord.SIZE + 4;
+
+    // Longest time a mutation waits before it's forced to disk
+    static final long SYNC_DELAY_MS = 250;
+
+    // Number of journal entries that triggers a compaction
+    static final int COMPACT_THRESHOLD = 512;
+
+    // Suffixes of the journal files, next to the snapshot file
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String OLD_JOURNAL_SUFFIX = ".journal.old";
+
+    private final PackedGeofenceStore mSnapshot;
+    private final File mJournalFile;
+    private final File mOldJournalFile;
+
+    // Current journal, replaced on every rotation
+    private RandomAccessFile mJournal;
+    private FileChannel mJournalChannel;
+    private int mJournalEntries = 0;
+
+    // All stored geofences, keyed by ID
+    private final HashMap<String, SimpleGeofence> mFences =
+            new HashMap<String, SimpleGeofence>();
+
+    // Changes recorded in the current journal but not yet in the snapshot
+    private GeofenceChangeSet mPending = new GeofenceChangeSet();
+
+    // Set while a compaction is running
+    private boolean mCompacting = false;
+
+    // Changes of a compaction that failed, still in the old journal
+    private GeofenceChangeSet mUncompacted;
+
+    // Journal length that triggers the next compaction
+    private int mCompactAt = COMPACT_THRESHOLD;
+
+    // Set while a background sync is scheduled
+    private boolean mSyncScheduled = false;
+
+    // Background thread for journal syncs and compactions
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GeofenceJournal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ByteBuffer mEntryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Opens the store, recovering from the snapshot and any journals left
+     * behind by an earlier process.
+     *
+     * @param snapshotFile The packed snapshot file. The journals are kept
+     * beside it.
+     */
+    public JournaledGeofenceStore(File snapshotFile) throws IOException {
+        mSnapshot = new PackedGeofenceStore(snapshotFile);
+        mJournalFile = new File(snapshotFile.getPath() + JOURNAL_SUFFIX);
+        mOldJournalFile = new File(snapshotFile.getPath() + OLD_JOURNAL_SUFFIX);
+
+        for (SimpleGeofence geofence : mSnapshot.getAllGeofences()) {
+            mFences.put(geofence.getId(), geofence);
+        }
+
+        // Finish a compaction that was interrupted by process death
+        if (mOldJournalFile.exists()) {
+            GeofenceChangeSet old = new GeofenceChangeSet();
+            replay(mOldJournalFile, old);
+            if (!mSnapshot.applyChanges(old)) {
+                throw new IOException("Unable to compact " + mOldJournalFile);
+            }
+            mOldJournalFile.delete();
+        }
+
+        // Replay the journal tail; it stays pending until the next compaction
+        mJournalEntries = replay(mJournalFile, mPending);
+        openJournal();
+    }
+
+    /** Returns a set of IDs. One for each stored geofence
+     *
+     */
+    public synchronized Set<String> getStoredIDs() {
+        return new HashSet<String>(mFences.keySet());
+    }
+
+    /**
+     * Returns a stored geofence by its id, or returns {@code null}
+     * if it's not found.
+     */
+    public synchronized SimpleGeofence getGeofence(String id) {
+        return mFences.get(id);
+    }
+
+    /**
+     * @return Every stored geofence, in no particular order
+     */
+    public synchronized List<SimpleGeofence> getAllGeofences() {
+        return new ArrayList<SimpleGeofence>(mFences.values());
+    }
+
+    /**
+     * Save a geofence. The change is readable immediately and reaches disk
+     * within {@link #SYNC_DELAY_MS}.
+     */
+    public synchronized void putGeofence(String id, SimpleGeofence geofence) {
+        try {
+            append(OP_PUT, geofence);
+            mFences.put(id, geofence);
+            mPending.markPut(geofence);
+            afterAppend();
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to journal geofence " + id, e);
+        }
+    }
+
+    /**
+     * Save a batch of geofences. A fence too long to store rejects the
+     * whole batch before anything is journaled.
+     *
+     * @return {@code false} if the batch could not be journaled
+     */
+    public synchronized boolean putAll(Collection<SimpleGeofence> geofences) {
+        if (!allFit(geofences)) {
+            return false;
+        }
+        try {
+            for (SimpleGeofence geofence : geofences) {
+                append(OP_PUT, geofence);
+                mFences.put(geofence.getId(), geofence);
+                mPending.markPut(geofence);
+            }
+            afterAppend();
+            return true;
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to journal geofence batch", e);
+            return false;
+        }
+    }
+
+    public synchronized void clearGeofence(String id) {
+        if (!mFences.containsKey(id)) {
+            return;
+        }
+        try {
+            append(OP_CLEAR, mFences.get(id));
+            mFences.remove(id);
+            mPending.markCleared(id);
+            afterAppend();
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to journal removal of " + id, e);
+        }
+    }
+
+    /**
+     * Write a set of changes. A fence too long to store rejects every
+     * change before anything is journaled.
+     *
+     * @return {@code false} if the changes could not be journaled
+     */
+    public synchronized boolean applyChanges(GeofenceChangeSet changes) {
+        Collection<SimpleGeofence> puts = changes.getPuts();
+        if (!allFit(puts)) {
+            return false;
+        }
+        try {
+            for (SimpleGeofence geofence : puts) {
+                append(OP_PUT, geofence);
+                mFences.put(geofence.getId(), geofence);
+                mPending.markPut(geofence);
+            }
+            for (String id : changes.getClears()) {
+                SimpleGeofence geofence = mFences.get(id);
+                if (geofence != null) {
+                    append(OP_CLEAR, geofence);
+                    mFences.remove(id);
+                    mPending.markCleared(id);
+                }
+            }
+            afterAppend();
+            return true;
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to journal geofence changes", e);
+            return false;
+        }
+    }
+
+    /*
+     * @return false, after logging it, if any fence is too long to store
+     */
+    private static boolean allFit(Collection<SimpleGeofence> geofences) {
+        SimpleGeofence misfit = GeofenceRecord.findMisfit(geofences);
+        if (misfit != null) {
+            Log.e(GeofenceUtils.APPTAG, "Geofence " + misfit.getId()
+                    + " has an id or message id too long to store; nothing journaled");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Force every journaled change to disk before returning.
+     */
+    public void sync() {
+        FileChannel channel;
+        synchronized (this) {
+            channel = mJournalChannel;
+        }
+        force(channel);
+    }
+
+    /**
+     * Sync the journal, wait for any running compaction and close the
+     * files. The store can't be used afterwards.
+     */
+    public void close() {
+        sync();
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                Log.e(GeofenceUtils.APPTAG, "Unable to close " + mJournalFile, e);
+            }
+            mSnapshot.close();
+        }
+    }
+
+    /*
+     * Append one entry at the end of the journal, without forcing it. An
+     * entry that fails partway is cut off again, since replay stops at the
+     * first torn entry and would lose every entry after it.
+     */
+    private void append(byte op, SimpleGeofence geofence) throws IOException {
+        if (!GeofenceRecord.fits(geofence)) {
+            throw new IOException(
+                    "Geofence " + geofence.getId() + " has an id or message id too long to store");
+        }
+        mEntryBuffer.clear();
+        mEntryBuffer.put(op);
+        GeofenceRecord.write(mEntryBuffer, geofence);
+        mCrc.reset();
+        mCrc.update(mEntryBuffer.array(), 0, mEntryBuffer.position());
+        mEntryBuffer.putInt((int) mCrc.getValue());
+        mEntryBuffer.flip();
+        long start = mJournalChannel.position();
+        try {
+            while (mEntryBuffer.hasRemaining()) {
+                mJournalChannel.write(mEntryBuffer);
+            }
+        } catch (IOException e) {
+            // Even if the truncate fails, the next entry overwrites this one
+            try {
+                mJournalChannel.position(start);
+                mJournalChannel.truncate(start);
+            } catch (IOException truncateFailure) {
+                Log.e(GeofenceUtils.APPTAG, "Unable to cut torn entry from " + mJournalFile,
+                        truncateFailure);
+            }
+            throw e;
+        }
+        mJournalEntries++;
+    }
+
+    /*
+     * Schedule a batched sync, and a compaction once the journal is long
+     * enough
+     */
+    private void afterAppend() throws IOException {
+        if (mJournalEntries >= mCompactAt && !mCompacting) {
+            compact();
+        } else if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            mExecutor.schedule(mSyncTask, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            FileChannel channel;
+            synchronized (JournaledGeofenceStore.this) {
+                mSyncScheduled = false;
+                channel = mJournalChannel;
+            }
+            force(channel);
+        }
+    };
+
+    /*
+     * Retire the current journal and hand its changes to a background
+     * compaction. New mutations go to a fresh journal meanwhile.
+     *
+     * While a failed compaction's changes are still in the old journal,
+     * the journal isn't rotated, which would overwrite them; that
+     * compaction is retried instead, each time the journal has grown by
+     * another COMPACT_THRESHOLD entries.
+     */
+    private void compact() throws IOException {
+        final GeofenceChangeSet changes;
+        if (mUncompacted != null) {
+            changes = mUncompacted;
+        } else {
+            mJournalChannel.force(false);
+            mJournal.close();
+            if (!mJournalFile.renameTo(mOldJournalFile)) {
+                openJournal();
+                throw new IOException("Unable to rotate " + mJournalFile);
+            }
+            openJournal();
+
+            changes = mPending;
+            mPending = new GeofenceChangeSet();
+            mJournalEntries = 0;
+        }
+        mCompacting = true;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                boolean compacted = false;
+                try {
+                    compacted = mSnapshot.applyChanges(changes);
+                } finally {
+                    synchronized (JournaledGeofenceStore.this) {
+                        mCompacting = false;
+                        if (compacted) {
+                            mOldJournalFile.delete();
+                            mUncompacted = null;
+                            mCompactAt = COMPACT_THRESHOLD;
+                        } else {
+                            // Keep the old journal for the retry, or for
+                            // recovery on next open
+                            Log.e(GeofenceUtils.APPTAG, "Geofence journal compaction failed");
+                            mUncompacted = changes;
+                            mCompactAt = mJournalEntries + COMPACT_THRESHOLD;
+                        }
+                    }
+                }
+                Log.d(GeofenceUtils.APPTAG, "Compacted " + changes.size()
+                        + " geofence changes in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        });
+    }
+
+    private void openJournal() throws IOException {
+        mJournal = new RandomAccessFile(mJournalFile, "rw");
+        mJournalChannel = mJournal.getChannel();
+        mJournalChannel.position(mJournalChannel.size());
+    }
+
+    /*
+     * Apply every valid entry of a journal to mFences and to changes.
+     * The journal is truncated after its last valid entry.
+     *
+     * @return The number of valid entries
+     */
+    private int replay(File journalFile, GeofenceChangeSet changes) throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            CRC32 crc = new CRC32();
+            long position = 0;
+            int entries = 0;
+            while (true) {
+                entry.clear();
+                while (entry.hasRemaining()) {
+                    if (channel.read(entry, position + entry.position()) <= 0) {
+                        break;
+                    }
+                }
+                if (entry.hasRemaining()) {
+                    break;
+                }
+                crc.reset();
+                crc.update(entry.array(), 0, ENTRY_SIZE - 4);
+                if (entry.getInt(ENTRY_SIZE - 4) != (int) crc.getValue()) {
+                    break;
+                }
+
+                entry.position(1);
+                SimpleGeofence geofence = GeofenceRecord.read(entry);
+                byte op = entry.get(0);
+                if (op == OP_PUT && geofence != null) {
+                    mFences.put(geofence.getId(), geofence);
+                    changes.markPut(geofence);
+                } else if (op == OP_CLEAR && geofence != null) {
+                    mFences.remove(geofence.getId());
+                    changes.markCleared(geofence.getId());
+                } else {
+                    break;
+                }
+                position += ENTRY_SIZE;
+                entries++;
+            }
+            if (position != channel.size()) {
+                Log.w(GeofenceUtils.APPTAG, "Dropping torn tail of " + journalFile);
+                channel.truncate(position);
+            }
+            return entries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void force(FileChannel channel) {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            // A closed channel was rotated, and was forced before closing
+            if (channel.isOpen()) {
+                Log.e(GeofenceUtils.APPTAG, "Unable to sync geofence journal", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.TextView;
+
+/**
+ * Shows the player's location in a TextView without allocating per fix.
+ *
+ * The coordinates are formatted to two decimals into a reused char buffer
+ * and handed to {@link TextView#setText(char[], int, int)}, and only when
+ * the text differs from what's shown. Repaints are at least
+ * {@link #FRAME_MS} apart; fixes arriving faster replace each other and
+ * only the latest is shown. Since the TextView keeps the buffer it was
+ * given, the text is formatted into a second buffer and the two swap on
+ * every repaint.
+ *
+ * Logging of each fix is compiled out of release builds and otherwise
+ * costs a level check unless the "Location" tag is loggable at DEBUG.
+ *
+ * For the UI thread only.
+ */
+public class LocationDisplay {
+
+    // Shortest time between repaints, one frame at 60 fps
+    public static final long FRAME_MS = 16;
+
+    private static final String LOG_TAG = "Location";
+
+    // Longest text after the prefix: two signed coordinates of up to 19
+    // integer digits each, and a separator
+    private static final int MAX_COORDINATE_CHARS = 2 * (1 + 19 + 3) + 2;
+
+    private final TextView mView;
+    private final char[] mPrefix;
+    private final Handler mHandler = new Handler();
+
+    // Shown text, and the buffer the next text is formatted into
+    private char[] mShown;
+    private int mShownLength = -1;
+    private char[] mNext;
+
+    // Latest fix not shown yet
+    private double mLatitude;
+    private double mLongitude;
+    private boolean mPaintScheduled = false;
+    private long mLastPaint = -FRAME_MS;
+
+    private int mFixCount = 0;
+    private int mPaintCount = 0;
+
+    private final Runnable mPaint = new Runnable() {
+        @Override
+        public void run() {
+            mPaintScheduled = false;
+            paint();
+        }
+    };
+
+    /**
+     * @param view The view to show the location in
+     * @param prefix Text shown before the coordinates
+     */
+    public LocationDisplay(TextView view, String prefix) {
+        mView = view;
+        mPrefix = prefix.toCharArray();
+        mShown = new char[mPrefix.length + MAX_COORDINATE_CHARS];
+        mNext = new char[mShown.length];
+    }
+
+    /**
+     * Show a fix, now or once the frame budget allows.
+     */
+    public void show(double latitude, double longitude) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mFixCount++;
+        if (BuildConfig.DEBUG && Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "Location update: " + latitude + ", " + longitude);
+        }
+        if (mPaintScheduled) {
+            return;
+        }
+        long wait = mLastPaint + FRAME_MS - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            paint();
+        } else {
+            mPaintScheduled = true;
+            mHandler.postDelayed(mPaint, wait);
+        }
+    }
+
+    /**
+     * Drop a repaint that's waiting, when the view is going away.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mPaint);
+        mPaintScheduled = false;
+    }
+
+    /**
+     * @return The number of fixes given to {@link #show}
+     */
+    public int getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * @return The number of times the view's text was set
+     */
+    public int getPaintCount() {
+        return mPaintCount;
+    }
+
+    private void paint() {
+        mLastPaint = SystemClock.uptimeMillis();
+        char[] text = mNext;
+        int length = mPrefix.length;
+        System.arraycopy(mPrefix, 0, text, 0, length);
+        length = format(mLatitude, text, length);
+        text[length++] = ',';
+        text[length++] = ' ';
+        length = format(mLongitude, text, length);
+
+        if (length == mShownLength && equal(text, mShown, length)) {
+            return;
+        }
+        mNext = mShown;
+        mShown = text;
+        mShownLength = length;
+        mView.setText(text, 0, length);
+        mPaintCount++;
+    }
+
+    /*
+     * Write a coordinate rounded to two decimals into a buffer
+     *
+     * @return The position after the last char written
+     */
+    static int format(double value, char[] buffer, int position) {
+        long hundredths = Math.round(Math.abs(value) * 100);
+        if (value < 0 && hundredths != 0) {
+            buffer[position++] = '-';
+        }
+        long whole = hundredths / 100;
+
+        // Integer digits, written backwards then reversed
+        int start = position;
+        do {
+            buffer[position++] = (char) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole != 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+
+        int fraction = (int) (hundredths % 100);
+        buffer[position++] = '.';
+        buffer[position++] = (char) ('0' + fraction / 10);
+        buffer[position++] = (char) ('0' + fraction % 10);
+        return position;
+    }
+
+    private static boolean equal(char[] a, char[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+/**
+ * Smooths location fixes and drops the bad ones before they reach the
+ * fence checks.
+ *
+ * Position and velocity are tracked with an alpha-beta filter in meters
+ * on a local plane around the first fix. The gain of each fix comes from
+ * its accuracy against the uncertainty of the estimate, as a Kalman filter
+ * would pick it, so a precise fix pulls the estimate hard and a vague one
+ * barely moves it.
+ *
+ * Coarse fixes, such as the ones the balanced and low power priorities
+ * deliver, are kept rather than dropped: their gain is small while the
+ * estimate is sharp, and grows as the estimate ages, so a player who only
+ * gets coarse fixes is still tracked.
+ *
+ * A fix is dropped if it repeats the previous raw fix, or if reaching it
+ * from the prediction would take more than {@link #MAX_SPEED}. After
+ * {@link #MAX_REJECTS}
+ * speed rejections in a row, or a long gap, the filter restarts at the
+ * new fix, since the player really did go somewhere else.
+ *
+ * {@link #accept} only returns {@code true} when the estimate moved or
+ * sharpened enough to matter, so callers can skip fence checks otherwise.
+ * Filtering a fix allocates nothing. Not thread safe.
+ */
+public class LocationFilter {
+
+    // Fastest plausible player speed, in meters per second
+    public static final float MAX_SPEED = 50;
+
+    // Consecutive speed rejections after which the filter restarts
+    public static final int MAX_REJECTS = 3;
+
+    // Accuracy assumed for fixes that don't report one, in meters
+    private static final float DEFAULT_ACCURACY = 20;
+
+    // Gap between fixes after which the filter restarts, in milliseconds
+    private static final long RESET_GAP_MS = 60 * 1000;
+
+    // Growth of position uncertainty per second without fixes, in meters
+    private static final double PROCESS_NOISE = 3;
+
+    // Smallest change of the estimate worth reporting, in meters
+    private static final double MIN_MOVE = 2;
+
+    // Local plane origin and scale
+    private double mOriginLatitude;
+    private double mOriginLongitude;
+    private double mMetersPerDegreeLng;
+
+    // Estimate in meters east and north of the origin, and its velocity
+    private double mX;
+    private double mY;
+    private double mVx;
+    private double mVy;
+
+    // Variance of the position estimate, in square meters
+    private double mVariance;
+
+    private long mTime;
+    private boolean mStarted = false;
+    private int mRejects = 0;
+
+    // Previous raw fix, to coalesce repeats
+    private double mRawLatitude;
+    private double mRawLongitude;
+    private float mRawAccuracy;
+
+    // Estimate last reported through accept()
+    private double mReportedX;
+    private double mReportedY;
+    private double mReportedVariance;
+
+    /**
+     * Filter a fix.
+     *
+     * @param latitude Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param accuracy Accuracy radius of the fix in meters, or 0 if unknown
+     * @param time Time of the fix in milliseconds, from a clock that never
+     * goes back
+     * @return {@code true} if the estimate changed enough to check fences
+     */
+    public boolean accept(double latitude, double longitude, float accuracy, long time) {
+        if (mStarted && latitude == mRawLatitude && longitude == mRawLongitude
+                && accuracy == mRawAccuracy) {
+            return false;
+        }
+        mRawLatitude = latitude;
+        mRawLongitude = longitude;
+        mRawAccuracy = accuracy;
+
+        if (accuracy <= 0) {
+            accuracy = DEFAULT_ACCURACY;
+        }
+
+        if (!mStarted || time - mTime > RESET_GAP_MS || time < mTime) {
+            restart(latitude, longitude, accuracy, time);
+            return true;
+        }
+
+        double x = (longitude - mOriginLongitude) * mMetersPerDegreeLng;
+        double y = (latitude - mOriginLatitude) * GeofenceEvaluator.METERS_PER_DEGREE;
+        double dt = (time - mTime) / 1000.0;
+
+        // Predict
+        double px = mX + mVx * dt;
+        double py = mY + mVy * dt;
+        double noise = PROCESS_NOISE * Math.max(dt, 1);
+        double variance = mVariance + noise * noise;
+
+        // Reject fixes that would need an implausible speed, beyond what
+        // their accuracy and ours can explain
+        double rx = x - px;
+        double ry = y - py;
+        double residual = Math.sqrt(rx * rx + ry * ry);
+        double slack = accuracy + Math.sqrt(variance);
+        if (residual - slack > MAX_SPEED * Math.max(dt, 1)) {
+            if (++mRejects >= MAX_REJECTS) {
+                restart(latitude, longitude, accuracy, time);
+                return true;
+            }
+            return false;
+        }
+        mRejects = 0;
+
+        // Correct
+        double alpha = variance / (variance + (double) accuracy * accuracy);
+        double beta = alpha * alpha / (2 - alpha);
+        mX = px + alpha * rx;
+        mY = py + alpha * ry;
+        if (dt > 0) {
+            mVx += beta * rx / dt;
+            mVy += beta * ry / dt;
+        }
+        mVariance = (1 - alpha) * variance;
+        mTime = time;
+
+        // Keep the plane small enough that the projection stays accurate
+        if (Math.abs(mX) > 20000 || Math.abs(mY) > 20000) {
+            rebase();
+        }
+        return report();
+    }
+
+    /**
+     * @return {@code true} once a fix was accepted, so there is an estimate
+     */
+    public boolean hasEstimate() {
+        return mStarted;
+    }
+
+    /**
+     * @return Latitude of the estimate
+     */
+    public double getLatitude() {
+        return mOriginLatitude + mY / GeofenceEvaluator.METERS_PER_DEGREE;
+    }
+
+    /**
+     * @return Longitude of the estimate
+     */
+    public double getLongitude() {
+        return mOriginLongitude + mX / mMetersPerDegreeLng;
+    }
+
+    /**
+     * @return One standard deviation of the estimate's position, in meters
+     */
+    public float getAccuracy() {
+        return (float) Math.sqrt(mVariance);
+    }
+
+    /**
+     * @return Estimated speed in meters per second
+     */
+    public float getSpeed() {
+        return (float) Math.sqrt(mVx * mVx + mVy * mVy);
+    }
+
+    private void restart(double latitude, double longitude, float accuracy, long time) {
+        mOriginLatitude = latitude;
+        mOriginLongitude = longitude;
+        mMetersPerDegreeLng = Math.max(GeofenceGridIndex.metersPerDegreeLng(latitude), 1);
+        mX = 0;
+        mY = 0;
+        mVx = 0;
+        mVy = 0;
+        mVariance = (double) accuracy * accuracy;
+        mTime = time;
+        mStarted = true;
+        mRejects = 0;
+        mReportedX = 0;
+        mReportedY = 0;
+        mReportedVariance = mVariance;
+    }
+
+    /*
+     * Move the origin to the current estimate
+     */
+    private void rebase() {
+        double latitude = getLatitude();
+        double longitude = getLongitude();
+        mReportedX -= mX;
+        mReportedY -= mY;
+        mOriginLatitude = latitude;
+        mOriginLongitude = longitude;
+        mMetersPerDegreeLng = Math.max(GeofenceGridIndex.metersPerDegreeLng(latitude), 1);
+        mX = 0;
+        mY = 0;
+    }
+
+    /*
+     * @return true if the estimate moved or sharpened since last reported
+     */
+    private boolean report() {
+        double dx = mX - mReportedX;
+        double dy = mY - mReportedY;
+        if (dx * dx + dy * dy < MIN_MOVE * MIN_MOVE && mVariance > mReportedVariance / 2) {
+            return false;
+        }
+        mReportedX = mX;
+        mReportedY = mY;
+        mReportedVariance = mVariance;
+        return true;
+    }
+}
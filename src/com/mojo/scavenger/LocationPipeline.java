@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+/**
+ * The work done for each location fix, in order: smoothing in a
+ * {@link LocationFilter}, fence checks in a {@link GeofenceEvaluator}, the
+ * registration window of a {@link NearestFenceWindow}, and the plan of a
+ * {@link LocationUpdateScheduler}.
+ *
+ * The scheduler sees every raw fix, including the ones the filter holds
+ * back, so that it keeps adjusting at the coarse priorities it picks far
+ * from the fences.
+ *
+ * The activity and {@link TrajectoryReplay} both feed fixes through this
+ * class, so a replayed track takes exactly the path a live one does.
+ * Pipelines sharing a table and index may run on different threads as
+ * long as nothing changes the table meanwhile. A single pipeline is not
+ * thread safe.
+ */
+public class LocationPipeline {
+
+    private final LocationFilter mFilter;
+    private final GeofenceEvaluator mEvaluator;
+    private final NearestFenceWindow mWindow;
+    private final LocationUpdateScheduler mScheduler;
+
+    public LocationPipeline(GeofenceTable table, GeofenceGridIndex index) {
+        mFilter = new LocationFilter();
+        mEvaluator = new GeofenceEvaluator(table);
+        mWindow = new NearestFenceWindow(table, index);
+        mScheduler = new LocationUpdateScheduler(table, index);
+    }
+
+    /**
+     * Run one fix through the pipeline.
+     *
+     * @param latitude Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param accuracy Accuracy radius of the fix in meters, or 0 if unknown
+     * @param speed Speed in meters per second, or a negative value if unknown
+     * @param time Time of the fix in milliseconds, from a clock that never
+     * goes back
+     * @param transitions Receives fence transitions
+     * @param window Receives changes to the registration window, or null
+     * to skip the window
+     * @return {@code true} if the scheduler wants a new location request
+     */
+    public boolean onFix(double latitude, double longitude, float accuracy, float speed,
+            long time, GeofenceEvaluator.TransitionListener transitions,
+            NearestFenceWindow.WindowListener window) {
+        // Smooth the fix and drop repeats and outliers
+        boolean moved = mFilter.accept(latitude, longitude, accuracy, time);
+        if (mFilter.hasEstimate()) {
+            double estimateLatitude = mFilter.getLatitude();
+            double estimateLongitude = mFilter.getLongitude();
+
+            // Test the geofences near a boundary. Runs even if the estimate
+            // didn't move, since dwell times run out on the clock.
+            mEvaluator.evaluate(estimateLatitude, estimateLongitude, mFilter.getAccuracy(), time,
+                    transitions);
+
+            // Keep the nearest geofences registered with Location Services
+            if (moved && window != null) {
+                mWindow.update(estimateLatitude, estimateLongitude, window);
+            }
+            if (speed < 0) {
+                speed = mFilter.getSpeed();
+            }
+        }
+
+        // Ask for fixes less often while far from every fence boundary
+        return mScheduler.onLocation(latitude, longitude, accuracy, speed, time);
+    }
+
+    /**
+     * Recompute the window on the next fix, after fences were added to or
+     * removed from the table.
+     */
+    public void invalidate() {
+        mWindow.invalidate();
+    }
+
+    public LocationFilter getFilter() {
+        return mFilter;
+    }
+
+    public GeofenceEvaluator getEvaluator() {
+        return mEvaluator;
+    }
+
+    public NearestFenceWindow getWindow() {
+        return mWindow;
+    }
+
+    public LocationUpdateScheduler getScheduler() {
+        return mScheduler;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+/**
+ * Replays a recorded track against a set of fences to compare the
+ * {@link LocationUpdateScheduler} with a fixed update interval.
+ *
+ * The track is the ground truth: every point is evaluated to count the
+ * transitions that really happened. Each schedule then only sees the
+ * points it would have sampled, and the report gives the fixes each one
+ * took and the transitions each one caught. A transition counts as caught
+ * if the schedule reports the same number of them, which is what matters
+ * for the game even when they arrive a few seconds late.
+ */
+public class LocationScheduleReplay {
+
+    /**
+     * Outcome of one replay.
+     */
+    public static class Report {
+        public int fixedFixes;
+        public int adaptiveFixes;
+        public int trueTransitions;
+        public int fixedTransitions;
+        public int adaptiveTransitions;
+
+        /**
+         * @return The share of fixed-schedule fixes the scheduler avoided
+         */
+        public double getSavedFraction() {
+            return fixedFixes == 0 ? 0 : 1.0 - (double) adaptiveFixes / fixedFixes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("fixes: fixed %d, adaptive %d (%.1f%% saved); "
+                    + "transitions: true %d, fixed %d, adaptive %d",
+                    fixedFixes, adaptiveFixes, getSavedFraction() * 100,
+                    trueTransitions, fixedTransitions, adaptiveTransitions);
+        }
+    }
+
+    private static final GeofenceEvaluator.TransitionListener sIgnore =
+            new GeofenceEvaluator.TransitionListener() {
+        @Override
+        public void onGeofenceTransition(int transition, GeofenceTable table, int slot) {
+        }
+    };
+
+    private LocationScheduleReplay() {
+    }
+
+    /**
+     * Replay a track.
+     *
+     * @param table The fences
+     * @param index An index over the fences
+     * @param times Time of each track point in milliseconds, ascending
+     * @param latitudes Latitude of each track point
+     * @param longitudes Longitude of each track point
+     * @param fixedInterval Interval of the fixed schedule in milliseconds
+     * @return The fix and transition counts
+     */
+    public static Report replay(GeofenceTable table, GeofenceGridIndex index, long[] times,
+            double[] latitudes, double[] longitudes, long fixedInterval) {
+        Report report = new Report();
+        int count = times.length;
+        if (count == 0) {
+            return report;
+        }
+
+        GeofenceEvaluator truth = new GeofenceEvaluator(table);
+        for (int i = 0; i < count; i++) {
+            report.trueTransitions +=
+                    truth.evaluate(latitudes[i], longitudes[i], 0, times[i], sIgnore);
+        }
+
+        // Fixed schedule: the first point at or after each tick
+        GeofenceEvaluator fixed = new GeofenceEvaluator(table);
+        long due = times[0];
+        for (int i = 0; i < count; i++) {
+            if (times[i] >= due) {
+                report.fixedFixes++;
+                report.fixedTransitions +=
+                        fixed.evaluate(latitudes[i], longitudes[i], 0, times[i], sIgnore);
+                due = times[i] + fixedInterval;
+            }
+        }
+
+        // Adaptive schedule: the scheduler picks each wait
+        GeofenceEvaluator adaptive = new GeofenceEvaluator(table);
+        LocationUpdateScheduler scheduler = new LocationUpdateScheduler(table, index);
+        due = times[0];
+        for (int i = 0; i < count; i++) {
+            if (times[i] >= due) {
+                report.adaptiveFixes++;
+                report.adaptiveTransitions +=
+                        adaptive.evaluate(latitudes[i], longitudes[i], 0, times[i], sIgnore);
+                scheduler.onLocation(latitudes[i], longitudes[i], 0, -1, times[i]);
+                due = times[i] + scheduler.getInterval();
+            }
+        }
+        return report;
+    }
+}
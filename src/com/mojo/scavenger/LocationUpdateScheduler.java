@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Picks the location update interval and priority from how soon the player
+ * could reach a fence boundary.
+ *
+ * After each fix, the scheduler finds the distance to the nearest fence
+ * edge, inside or out, less the fix's accuracy, and divides it by the
+ * player's speed. The next fix is due after half that time, clamped between
+ * {@link #MIN_INTERVAL_MS} and {@link #MAX_INTERVAL_MS}, so fixes are rare
+ * far from every fence and dense near a boundary. Priority drops to
+ * balanced and then low power as the nearest boundary gets farther away.
+ *
+ * A new plan is only reported when the priority changes or the interval
+ * moves by more than a quarter, since every new request restarts the
+ * location provider. Not thread safe.
+ */
+public class LocationUpdateScheduler {
+
+    // Interval bounds in milliseconds
+    public static final long MIN_INTERVAL_MS = 1000;
+    public static final long MAX_INTERVAL_MS = 2 * 60 * 1000;
+
+    // Speed assumed when it's unknown or lower, in meters per second
+    static final float MIN_SPEED = 1.5f;
+
+    // Fraction of the time to the nearest boundary to wait between fixes
+    private static final double SAFETY_FACTOR = 0.5;
+
+    // Boundary distances below which each priority is used, in meters
+    private static final double HIGH_ACCURACY_METERS = 250;
+    private static final double BALANCED_METERS = 2000;
+
+    // Farthest the nearest-fence search looks, in meters
+    private static final double MAX_SEARCH_METERS = 16000;
+    private static final double INITIAL_SEARCH_METERS = 250;
+
+    // Smallest relative interval change worth a new request
+    private static final double INTERVAL_CHANGE = 0.25;
+
+    private final GeofenceTable mTable;
+    private final GeofenceGridIndex mIndex;
+    private final GeofenceGridIndex.Result mCandidates = new GeofenceGridIndex.Result();
+
+    // Current plan
+    private long mInterval = MIN_INTERVAL_MS;
+    private int mPriority = LocationRequest.PRIORITY_HIGH_ACCURACY;
+
+    // Previous fix, for estimating speed when the fix has none
+    private boolean mHasPrevious = false;
+    private double mPreviousLatitude;
+    private double mPreviousLongitude;
+    private long mPreviousTime;
+
+    // Distance to the nearest boundary found for the last fix
+    private double mBoundaryDistance;
+
+    public LocationUpdateScheduler(GeofenceTable table, GeofenceGridIndex index) {
+        mTable = table;
+        mIndex = index;
+    }
+
+    /**
+     * Plan the next fix from the current one.
+     *
+     * @param latitude Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param accuracy Accuracy radius of the fix in meters, or 0 if unknown
+     * @param speed Speed in meters per second, or a negative value if unknown
+     * @param time Time of the fix in milliseconds
+     * @return {@code true} if the interval or priority changed enough to
+     * send a new request
+     */
+    public boolean onLocation(double latitude, double longitude, float accuracy,
+            float speed, long time) {
+        double metersPerDegreeLng = GeofenceGridIndex.metersPerDegreeLng(latitude);
+        if (speed < 0 && mHasPrevious && time > mPreviousTime) {
+            double dy = (latitude - mPreviousLatitude) * GeofenceEvaluator.METERS_PER_DEGREE;
+            double dx = (longitude - mPreviousLongitude) * metersPerDegreeLng;
+            speed = (float) (Math.sqrt(dx * dx + dy * dy) * 1000.0 / (time - mPreviousTime));
+        }
+        mHasPrevious = true;
+        mPreviousLatitude = latitude;
+        mPreviousLongitude = longitude;
+        mPreviousTime = time;
+
+        mBoundaryDistance = Math.max(
+                nearestBoundary(latitude, longitude, metersPerDegreeLng) - accuracy, 0);
+        double seconds = mBoundaryDistance / Math.max(speed, MIN_SPEED) * SAFETY_FACTOR;
+        long interval = Math.max(MIN_INTERVAL_MS,
+                Math.min(MAX_INTERVAL_MS, (long) (seconds * 1000)));
+
+        int priority;
+        if (mBoundaryDistance < HIGH_ACCURACY_METERS) {
+            priority = LocationRequest.PRIORITY_HIGH_ACCURACY;
+        } else if (mBoundaryDistance < BALANCED_METERS) {
+            priority = LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+        } else {
+            priority = LocationRequest.PRIORITY_LOW_POWER;
+        }
+
+        boolean changed = priority != mPriority
+                || Math.abs(interval - mInterval) > mInterval * INTERVAL_CHANGE;
+        if (changed) {
+            mInterval = interval;
+            mPriority = priority;
+        }
+        return changed;
+    }
+
+    /**
+     * Copy the current plan into a request.
+     */
+    public void apply(LocationRequest request) {
+        request.setInterval(mInterval);
+        request.setPriority(mPriority);
+    }
+
+    /**
+     * @return The planned time between fixes in milliseconds
+     */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * @return The planned {@code LocationRequest.PRIORITY_*} value
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return Meters from the last fix to the nearest fence boundary, less
+     * the fix's accuracy, or the search limit if no fence is that close
+     */
+    public double getBoundaryDistance() {
+        return mBoundaryDistance;
+    }
+
+    /*
+     * Distance from a point to the nearest fence boundary, from inside or
+     * outside, capped at the search limit
+     */
+    private double nearestBoundary(double latitude, double longitude,
+            double metersPerDegreeLng) {
+        for (double search = INITIAL_SEARCH_METERS; search <= MAX_SEARCH_METERS; search *= 2) {
+            mIndex.queryRadius(latitude, longitude, search, mCandidates);
+            if (mCandidates.size() == 0) {
+                continue;
+            }
+            double nearest = MAX_SEARCH_METERS;
+            for (int i = 0; i < mCandidates.size(); i++) {
+                int slot = mCandidates.get(i);
+                double distance = Math.abs(Math.sqrt(
+                        mIndex.distanceSquared(latitude, longitude, metersPerDegreeLng, slot))
+                        - mTable.mRadii[slot]);
+                nearest = Math.min(nearest, distance);
+            }
+
+            // A fence the player is deep inside can be farther than the search
+            if (nearest <= search || search * 2 > MAX_SEARCH_METERS) {
+                return nearest;
+            }
+        }
+        return MAX_SEARCH_METERS;
+    }
+}
@@ -1,8 +1,7 @@
 package com.mojo.scavenger;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Set;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesClient;
@@ -10,11 +9,14 @@ import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.LocationClient;
 import com.google.android.gms.location.LocationClient.OnAddGeofencesResultListener;
+import com.google.android.gms.location.LocationClient.OnRemoveGeofencesResultListener;
+import com.google.android.gms.location.LocationStatusCodes;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationListener;
 
 import android.location.Location;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.PendingIntent;
@@ -29,7 +31,6 @@ import android.view.Menu;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -39,7 +40,8 @@ public class MainActivity extends FragmentActivity implements
 GooglePlayServicesClient.ConnectionCallbacks,
 GooglePlayServicesClient.OnConnectionFailedListener,
 LocationListener,
-OnAddGeofencesResultListener {
+OnAddGeofencesResultListener,
+OnRemoveGeofencesResultListener {
 
 	// Global constants
 	/*
@@ -80,22 +82,40 @@ OnAddGeofencesResultListener {
 	// Current location
 	Location currentLocation;
 
-	// List of geofence items
-	ArrayList<SimpleGeofence> fencelist = new ArrayList<SimpleGeofence>();
+	// The geofences of this process, kept warm across activity instances
+	GeofenceRepository fencerepo;
 
-	// Local storage of geofence items
-	SimpleGeofenceStore fencelist_store;
+	// The same geofences in columns, for scans on every location fix
+	GeofenceTable fencetable;
+
+	// Spatial index over fencetable
+	GeofenceGridIndex fenceindex;
+
+	// Per-fix work against fencetable: smoothing, local containment tests,
+	// the window of nearest geofences registered with Location Services,
+	// and the update interval. Owned by fencerepo, so its state survives
+	// recreation of the activity.
+	LocationPipeline fencepipeline;
+
+	// The geofences nearest the player, shown in the list once there's a fix
+	NearestFenceRanking fencenearest;
+	SimpleGeofence[] fencenearest_rows =
+			new SimpleGeofence[NearestFenceRanking.DEFAULT_SIZE];
+
+	// Registers and unregisters geofences as the window changes
+	GeofenceRegistrar fenceregistrar;
 
 	// Status fields
 	boolean location_avail = false;
 
 	// GUI components
 	TextView tb_loc;
+	LocationDisplay tb_loc_display;
 	ListView fencelistview;
 	Button   btn_mark;
 
 	// Data adapters
-	ArrayAdapter<SimpleGeofence> fencelist_adapter;
+	GeofenceListAdapter fencelist_adapter;
 
 	// Other globals
 	Random rand = new Random();
@@ -106,6 +126,7 @@ OnAddGeofencesResultListener {
 		setContentView(R.layout.activity_main);
 
 		tb_loc = (TextView) findViewById(R.id.textbox_location);
+		tb_loc_display = new LocationDisplay(tb_loc, "Location: ");
 		fencelistview = (ListView) findViewById(R.id.fencelist);
 		btn_mark = (Button) findViewById(R.id.button_mark);
 
@@ -132,13 +153,26 @@ OnAddGeofencesResultListener {
 			tb_loc.setText("Location: Unavailable");
 		}
 
+		// Share the process's geofences, table, index and pipeline
+		fencerepo = GeofenceRepository.getInstance(this);
+		fencetable = fencerepo.getTable();
+		fenceindex = fencerepo.getIndex();
+		fencepipeline = fencerepo.getPipeline();
+		fencenearest = new NearestFenceRanking(fencetable, fenceindex);
+
 		// Connect fencelist to view using adapter
-		fencelist_adapter = new ArrayAdapter<SimpleGeofence>(this,
-				R.layout.simple_list_entry_1, fencelist);
+		fencelist_adapter = new GeofenceListAdapter(this);
 
 		fencelistview.setAdapter(fencelist_adapter);
 		fencelistview.setOnItemClickListener(mMessageClickedHandler);
 
+		fenceregistrar = new GeofenceRegistrar(this, getTransitionPendingIntent(),
+				this, this);
+		fenceregistrar.setLocationClient(mLocationClient);
+
+		// Hand the new registrar the window an earlier instance computed
+		fencepipeline.getWindow().report(fenceregistrar);
+
 	}
 
 	@Override
@@ -148,20 +182,18 @@ OnAddGeofencesResultListener {
 		//	mLocationClient.connect();
 		//}
 
-		fencelist_store = new SimpleGeofenceStore(this);
+		// Move legacy storage to the compact schema in the background
+		GeofenceStoreMigrator.startIfNeeded(this);
 
-		// Restore all geofences from non-vol mem
-		Set<String> _fencelist_ids = fencelist_store.getStoredIDs();
+		// Deliver transitions left queued by a process that died
+		ReceiveTransitionsIntentService.deliverPending(this);
 
-		if (_fencelist_ids != null) {
-			ArrayList<String> fencelist_ids = new ArrayList<String>(_fencelist_ids);
-
-			for (int i = 0; i < fencelist_ids.size(); i++) {
-				SimpleGeofence sgf = fencelist_store.getGeofence(fencelist_ids.get(i));
-				fencelist.add(sgf);
-			}
-			fencelist_adapter.notifyDataSetChanged();
-		}
+		// Show the geofences already in memory, loading them from
+		// non-vol mem off the UI thread the first time in this process
+		fencelist_adapter.clear();
+		fencepipeline.invalidate();
+		fencenearest.invalidate();
+		fencerepo.restore(mRestoreListener);
 	}
 
 	/*
@@ -187,11 +219,13 @@ OnAddGeofencesResultListener {
 		//	mLocationClient.disconnect();
 		//}
 
-		// Store all geofences to non-vol mem
-		for (int i = 0; i < fencelist.size(); i++) {
-			SimpleGeofence sgf = fencelist.get(i);
-			fencelist_store.putGeofence(sgf.getId(), sgf);
-		}
+		// A restore still running carries on without this activity
+		fencerepo.detach();
+		tb_loc_display.cancel();
+
+		// Store only the geofences that changed to non-vol mem,
+		// in one background write
+		fencerepo.persist();
 
 		super.onStop();
 
@@ -335,6 +369,9 @@ OnAddGeofencesResultListener {
 		// Display the connection status
 		Toast.makeText(this, "Connected", Toast.LENGTH_SHORT).show();
 		mLocationClient.requestLocationUpdates(mLocationRequest, this);
+
+		// Send any registration changes made while disconnected
+		fenceregistrar.reconcile();
 	}
 
 	/*
@@ -354,37 +391,121 @@ OnAddGeofencesResultListener {
 		currentLocation = location;
 
 		// Report to the UI that the location was updated
-		String msg = String.format("%.2f, %.2f",
-				location.getLatitude(), location.getLongitude());
-		
-		tb_loc.setText("Location: " + msg);
+		tb_loc_display.show(location.getLatitude(), location.getLongitude());
+
+		// Check the fences, and ask for fixes less often while far from
+		// every fence boundary
+		if (fencepipeline.onFix(location.getLatitude(), location.getLongitude(),
+				location.hasAccuracy() ? location.getAccuracy() : 0,
+				location.hasSpeed() ? location.getSpeed() : -1,
+				SystemClock.elapsedRealtime(), mLocalTransitionListener, fenceregistrar)
+				&& mLocationRequest != null
+				&& mLocationClient != null && mLocationClient.isConnected()) {
+			fencepipeline.getScheduler().apply(mLocationRequest);
+			mLocationClient.requestLocationUpdates(mLocationRequest, this);
+		}
+
+		// Keep the list nearest first
+		updateNearest();
+	}
 
-		Log.d("Location", "Location update: " + msg);
-		//Toast.makeText(this, msg, Toast.LENGTH_SHORT).show();
+	/*
+	 * Re-rank the nearest geofences around the smoothed location.
+	 *
+	 * @return false if there's no location yet, so the list shows every
+	 * geofence instead
+	 */
+	private boolean updateNearest() {
+		LocationFilter filter = fencepipeline.getFilter();
+		if (!filter.hasEstimate()) {
+			return false;
+		}
+		fencenearest.update(filter.getLatitude(), filter.getLongitude(), mNearestListener);
+		return true;
 	}
 
+	// Publishes the nearest geofences to the list
+	private NearestFenceRanking.RankingListener mNearestListener =
+			new NearestFenceRanking.RankingListener() {
+		@Override
+		public void onRankingChanged(String[] ids, int count) {
+			GeofenceRepository.Snapshot snapshot = fencerepo.getSnapshot();
+			int rows = 0;
+			for (int i = 0; i < count; i++) {
+				SimpleGeofence sgf = snapshot.get(ids[i]);
+				if (sgf != null) {
+					fencenearest_rows[rows++] = sgf;
+				}
+			}
+			fencelist_adapter.setAll(fencenearest_rows, rows);
+			Arrays.fill(fencenearest_rows, 0, rows, null);
+		}
+	};
+
+	// Callback for transitions found by the local evaluator
+	private GeofenceEvaluator.TransitionListener mLocalTransitionListener =
+			new GeofenceEvaluator.TransitionListener() {
+		public void onGeofenceTransition(int transition, GeofenceTable table, int slot) {
+			int label;
+			if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+				label = R.string.geofence_transition_entered;
+			} else if (transition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+				label = R.string.geofence_transition_exited;
+			} else {
+				label = R.string.geofence_transition_dwelling;
+			}
+			String transitionType = getString(label);
+			Log.d(GeofenceUtils.APPTAG, getString(
+					R.string.geofence_transition_notification_title,
+					transitionType, table.getId(slot)));
+		}
+	};
+
+	// Adds restored geofences to the list as they arrive; the repository
+	// has already added them to the table and index
+	private GeofenceRestoreTask.RestoreListener mRestoreListener =
+			new GeofenceRestoreTask.RestoreListener() {
+		@Override
+		public void onGeofencesRestored(SimpleGeofence[] geofences) {
+			fencepipeline.invalidate();
+			fencenearest.invalidate();
+			if (!updateNearest()) {
+				fencelist_adapter.addAll(geofences);
+			}
+		}
+
+		@Override
+		public void onRestoreFinished(int count) {
+			// Every chunk has been shown
+		}
+	};
+
 	// Called when "Mark!" button is clicked
-	// Adds a geofence around the current location to fencelist
+	// Adds a geofence around the current location to the list
 	public void onMarkButtonClicked(View v) {
 		//String msgId = Integer.toString(rand.nextInt(1000));
 		String msgId = String.format("%d", rand.nextInt(999999999));
 		
 		//Location location = 
 		
-		fencelist.add(new SimpleGeofence(
+		SimpleGeofence sgf = new SimpleGeofence(
 				"test." + Integer.toString(rand.nextInt()),
 				currentLocation.getLatitude(),
 				currentLocation.getLongitude(),
 				100, // radius in meters
 				Geofence.NEVER_EXPIRE,
 				Geofence.GEOFENCE_TRANSITION_ENTER,
-				msgId));
-
-		// Alert the list of the new addition
-		fencelist_adapter.notifyDataSetChanged();
-		
-		// Register this geofence with location services
+				msgId);
+		fencerepo.add(sgf);
+		fencepipeline.invalidate();
+		fencenearest.invalidate();
+
+		// Show the new addition in the list
+		if (!updateNearest()) {
+			fencelist_adapter.add(sgf);
+		}
 		
+		// Registered with Location Services once it's among the nearest
 	}
 	
 	/*
@@ -416,22 +537,54 @@ OnAddGeofencesResultListener {
 			String msgId = sgf.getMsgId();
 			Toast.makeText(parent.getContext(), msgId, Toast.LENGTH_SHORT).show();
 
-			// Remove this fencelist from LocationServices
-			//TODO: Do this
+			// Remove from storage when the activity stops
+			fencerepo.remove(sgf.getId());
 
-			// Remove from storage
-			fencelist_store.clearGeofence(sgf.getId());
+			// Unregister from Location Services
+			fenceregistrar.remove(sgf.getId());
+			fencepipeline.invalidate();
+			fencenearest.invalidate();
 
 			// Remove from list
-			fencelist_adapter.remove(sgf);	    	
-			fencelist_adapter.notifyDataSetChanged();
+			fencelist_adapter.remove(position);
+			updateNearest();
 		}
 	};
 
 	@Override
 	public void onAddGeofencesResult(int statusCode, String[] geofenceRequestIds) {
-		// TODO Auto-generated method stub
-		
+		if (LocationStatusCodes.SUCCESS == statusCode) {
+			Log.d(GeofenceUtils.APPTAG, getString(R.string.add_geofences_result_success,
+					Arrays.toString(geofenceRequestIds)));
+		} else {
+			Log.e(GeofenceUtils.APPTAG, getString(R.string.add_geofences_result_failure,
+					statusCode, Arrays.toString(geofenceRequestIds)));
+		}
+		fenceregistrar.onAddResult(statusCode, geofenceRequestIds);
+	}
+
+	@Override
+	public void onRemoveGeofencesByRequestIdsResult(int statusCode,
+			String[] geofenceRequestIds) {
+		if (LocationStatusCodes.SUCCESS == statusCode) {
+			Log.d(GeofenceUtils.APPTAG, getString(R.string.remove_geofences_id_success,
+					Arrays.toString(geofenceRequestIds)));
+		} else {
+			Log.e(GeofenceUtils.APPTAG, getString(R.string.remove_geofences_id_failure,
+					statusCode, Arrays.toString(geofenceRequestIds)));
+		}
+		fenceregistrar.onRemoveResult(statusCode, geofenceRequestIds);
+	}
+
+	@Override
+	public void onRemoveGeofencesByPendingIntentResult(int statusCode,
+			PendingIntent requestIntent) {
+		if (LocationStatusCodes.SUCCESS == statusCode) {
+			Log.d(GeofenceUtils.APPTAG, getString(R.string.remove_geofences_intent_success));
+		} else {
+			Log.e(GeofenceUtils.APPTAG, getString(R.string.remove_geofences_intent_failure,
+					statusCode));
+		}
 	}
 	
 	/**
@@ -460,7 +613,8 @@ OnAddGeofencesResultListener {
         if (!mInProgress) {
             // Indicate that a request is underway
             mInProgress = true;
-            // Request a connection from the client to Location Services
+            // Request a connection from the client to Location Services.
+            // onConnected() then registers whatever fenceregistrar is missing.
             mLocationClient.connect();
         } else {
             /*
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Maps geofence request IDs to message IDs, for resolving the fences that
+ * triggered a transition without reading each fence from storage.
+ *
+ * The map is an open-addressing hash table over parallel arrays of
+ * hashes, IDs and message IDs. It is loaded once per process, from a
+ * small file in the app's files directory holding just the ID pairs, or
+ * built from {@link SimpleGeofenceStore} if the file is missing. Every
+ * write through {@link SimpleGeofenceStore} updates the loaded map, and
+ * the file is then rewritten from it on a background thread, so a process
+ * started later for a transition finds it current. If this process hasn't
+ * loaded the map, the background thread builds it from the store first,
+ * and meanwhile lookups here don't trust the file.
+ *
+ * Thread safe.
+ */
+public final class MsgIdIndex {
+
+    // Name of the index file in the app's files directory
+    static final String FILE_NAME = "msgids.idx";
+
+    private static final int MAGIC = 0x4d534749; // "MSGI"
+    private static final int FORMAT_VERSION = 1;
+
+    // The index for this process, once loaded
+    private static MsgIdIndex sIndex;
+
+    // Incremented by every write, so a build that raced a write is dropped
+    private static int sGeneration = 0;
+
+    // Set once this process wrote fences before loading the index, so the
+    // file may lack them until it's rewritten
+    private static boolean sFileStale = false;
+
+    // Set while a rewrite of the file is queued but not started
+    private static boolean sRewriteQueued = false;
+
+    // Background thread for builds and writes of the file
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MsgIdIndex");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Table entries; a null key marks an empty entry
+    private int[] mHashes;
+    private String[] mKeys;
+    private String[] mValues;
+    private int mCount = 0;
+
+    private MsgIdIndex(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        mHashes = new int[capacity];
+        mKeys = new String[capacity];
+        mValues = new String[capacity];
+    }
+
+    /**
+     * Look up the message IDs of some geofences, loading the index first
+     * if this process hasn't yet.
+     *
+     * @param context Any context of the app
+     * @param ids Request IDs of geofences
+     * @return The message IDs, or {@code null} for fences that aren't stored
+     */
+    public static String[] resolve(Context context, String[] ids) {
+        MsgIdIndex index = getIndex(context);
+        String[] msgIds = new String[ids.length];
+        synchronized (MsgIdIndex.class) {
+            for (int i = 0; i < ids.length; i++) {
+                msgIds[i] = index.get(ids[i]);
+            }
+        }
+        return msgIds;
+    }
+
+    /*
+     * Called by SimpleGeofenceStore, holding its lock, for each geofence
+     * it stores. Follow a batch of these with onStored().
+     */
+    static synchronized void onPut(String id, String msgId) {
+        sGeneration++;
+        if (sIndex != null) {
+            sIndex.put(id, msgId);
+        }
+    }
+
+    /*
+     * Called by SimpleGeofenceStore, holding its lock, for each geofence
+     * it removes. Follow a batch of these with onStored().
+     */
+    static synchronized void onClear(String id) {
+        sGeneration++;
+        if (sIndex != null) {
+            sIndex.remove(id);
+        }
+    }
+
+    /*
+     * Called by SimpleGeofenceStore after a write, holding its lock. Queues
+     * a rewrite of the index file and returns at once.
+     */
+    static synchronized void onStored(Context context) {
+        if (sIndex == null) {
+            sFileStale = true;
+        }
+        queueRewrite(context.getApplicationContext());
+    }
+
+    private static MsgIdIndex getIndex(Context context) {
+        int generation;
+        boolean fileStale;
+        synchronized (MsgIdIndex.class) {
+            if (sIndex != null) {
+                return sIndex;
+            }
+            generation = sGeneration;
+            fileStale = sFileStale;
+        }
+
+        // Load outside the lock, since building reads the store, which
+        // calls back in here under its own lock
+        MsgIdIndex index = fileStale ? null : read(getFile(context));
+        boolean built = false;
+        if (index == null) {
+            index = build(context);
+            built = true;
+        }
+
+        synchronized (MsgIdIndex.class) {
+            if (sGeneration != generation) {
+                // A write landed meanwhile; use this copy once, keep nothing
+                return index;
+            }
+            sIndex = index;
+            if (built) {
+                queueRewrite(context.getApplicationContext());
+            }
+            return index;
+        }
+    }
+
+    /*
+     * Write the file from the loaded index, in the background. Queued
+     * rewrites coalesce, since each writes the index as it is when it runs.
+     */
+    private static void queueRewrite(final Context context) {
+        if (sRewriteQueued) {
+            return;
+        }
+        sRewriteQueued = true;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MsgIdIndex.class) {
+                    sRewriteQueued = false;
+                }
+                MsgIdIndex index = getIndex(context);
+                MsgIdIndex copy;
+                synchronized (MsgIdIndex.class) {
+                    copy = index.copy();
+                }
+                copy.write(getFile(context));
+            }
+        });
+    }
+
+    private static MsgIdIndex build(Context context) {
+        List<SimpleGeofence> geofences = new SimpleGeofenceStore(context).getAllGeofences();
+        MsgIdIndex index = new MsgIdIndex(geofences.size());
+        for (SimpleGeofence geofence : geofences) {
+            index.put(geofence.getId(), geofence.getMsgId());
+        }
+        return index;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /*
+     * @return The index in a file, or null if it's missing or unreadable
+     */
+    private static MsgIdIndex read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            MsgIdIndex index = new MsgIdIndex(count);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String msgId = in.readBoolean() ? in.readUTF() : null;
+                index.put(id, msgId);
+            }
+            return index;
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing was written
+                }
+            }
+        }
+    }
+
+    /*
+     * Write the index to a temporary file, then move it into place
+     */
+    private void write(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mCount);
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] != null) {
+                    out.writeUTF(mKeys[i]);
+                    out.writeBoolean(mValues[i] != null);
+                    if (mValues[i] != null) {
+                        out.writeUTF(mValues[i]);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to write " + file, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+            }
+        }
+    }
+
+    private MsgIdIndex copy() {
+        MsgIdIndex copy = new MsgIdIndex(0);
+        copy.mHashes = mHashes.clone();
+        copy.mKeys = mKeys.clone();
+        copy.mValues = mValues.clone();
+        copy.mCount = mCount;
+        return copy;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private String get(String id) {
+        int h = hash(id);
+        int mask = mKeys.length - 1;
+        for (int i = h & mask; mKeys[i] != null; i = (i + 1) & mask) {
+            if (mHashes[i] == h && id.equals(mKeys[i])) {
+                return mValues[i];
+            }
+        }
+        return null;
+    }
+
+    private void put(String id, String msgId) {
+        int h = hash(id);
+        int mask = mKeys.length - 1;
+        int i = h & mask;
+        while (mKeys[i] != null) {
+            if (mHashes[i] == h && id.equals(mKeys[i])) {
+                mValues[i] = msgId;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        mHashes[i] = h;
+        mKeys[i] = id;
+        mValues[i] = msgId;
+        if (++mCount * 2 > mKeys.length) {
+            grow();
+        }
+    }
+
+    /*
+     * Remove an ID, shifting later entries of its probe run back so
+     * lookups never need tombstones
+     */
+    private void remove(String id) {
+        int h = hash(id);
+        int mask = mKeys.length - 1;
+        int hole = h & mask;
+        while (true) {
+            if (mKeys[hole] == null) {
+                return;
+            }
+            if (mHashes[hole] == h && id.equals(mKeys[hole])) {
+                break;
+            }
+            hole = (hole + 1) & mask;
+        }
+        for (int j = (hole + 1) & mask; mKeys[j] != null; j = (j + 1) & mask) {
+            int home = mHashes[j] & mask;
+            // Move the entry at j into the hole unless its home lies
+            // cyclically in (hole, j]
+            boolean stays = hole <= j
+                    ? (home > hole && home <= j)
+                    : (home > hole || home <= j);
+            if (!stays) {
+                mHashes[hole] = mHashes[j];
+                mKeys[hole] = mKeys[j];
+                mValues[hole] = mValues[j];
+                hole = j;
+            }
+        }
+        mKeys[hole] = null;
+        mValues[hole] = null;
+        mCount--;
+    }
+
+    private void grow() {
+        int[] hashes = mHashes;
+        String[] keys = mKeys;
+        String[] values = mValues;
+        mHashes = new int[keys.length * 2];
+        mKeys = new String[keys.length * 2];
+        mValues = new String[keys.length * 2];
+        int mask = mKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int j = hashes[i] & mask;
+                while (mKeys[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                mHashes[j] = hashes[i];
+                mKeys[j] = keys[i];
+                mValues[j] = values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.List;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * The K fences nearest the player, nearest first, for showing in a list.
+ *
+ * Which fences are nearest is kept by a {@link NearestFenceWindow}, which
+ * only searches the index when a move could have changed them. On every
+ * update the K fences are re-measured and put back in order with an
+ * insertion sort; between fixes the order barely changes, so this is close
+ * to linear in K. The listener only hears about updates that changed the
+ * fences or their order.
+ *
+ * Not thread safe.
+ */
+public class NearestFenceRanking {
+
+    /**
+     * Receives the ranking whenever it changes.
+     */
+    public interface RankingListener {
+        /**
+         * @param ids Request IDs of the nearest fences, nearest first. Only
+         * valid during the call.
+         * @param count The number of IDs in the array
+         */
+        void onRankingChanged(String[] ids, int count);
+    }
+
+    // Number of rows of a list the ranking fills by default
+    public static final int DEFAULT_SIZE = 50;
+
+    private final GeofenceTable mTable;
+    private final GeofenceGridIndex mIndex;
+    private final NearestFenceWindow mWindow;
+
+    // The ranked fences: slots, IDs and edge distances, nearest first
+    private final int[] mSlots;
+    private final String[] mIds;
+    private final double[] mDistances;
+    private int mCount = 0;
+
+    // Set by the window when the ranked fences changed
+    private boolean mMembershipChanged = false;
+
+    // Set once the current ranking was reported
+    private boolean mReported = false;
+
+    private final NearestFenceWindow.WindowListener mWindowListener =
+            new NearestFenceWindow.WindowListener() {
+        @Override
+        public void onWindowChanged(List<Geofence> added, List<String> removed) {
+            for (String id : removed) {
+                removeRow(id);
+            }
+            for (Geofence geofence : added) {
+                String id = geofence.getRequestId();
+                mSlots[mCount] = mTable.indexOf(id);
+                mIds[mCount] = id;
+                mDistances[mCount] = Double.MAX_VALUE;
+                mCount++;
+            }
+            mMembershipChanged = true;
+        }
+    };
+
+    public NearestFenceRanking(GeofenceTable table, GeofenceGridIndex index) {
+        this(table, index, DEFAULT_SIZE);
+    }
+
+    public NearestFenceRanking(GeofenceTable table, GeofenceGridIndex index, int size) {
+        mTable = table;
+        mIndex = index;
+        mWindow = new NearestFenceWindow(table, index, size);
+        mSlots = new int[size];
+        mIds = new String[size];
+        mDistances = new double[size];
+    }
+
+    /**
+     * Recompute which fences are nearest on the next update, and report
+     * the ranking even if it's unchanged. Use after fences were added to or
+     * removed from the table, or the listener lost the last ranking.
+     */
+    public void invalidate() {
+        mWindow.invalidate();
+        mReported = false;
+    }
+
+    /**
+     * Rank the fences around a new player location.
+     *
+     * @return {@code true} if the ranking changed and the listener was called
+     */
+    public boolean update(double latitude, double longitude, RankingListener listener) {
+        mMembershipChanged = false;
+        mWindow.update(latitude, longitude, mWindowListener);
+
+        // Re-measure every ranked fence and restore the order
+        double metersPerDegreeLng = GeofenceGridIndex.metersPerDegreeLng(latitude);
+        for (int i = 0; i < mCount; i++) {
+            double distance = Math.sqrt(
+                    mIndex.distanceSquared(latitude, longitude, metersPerDegreeLng, mSlots[i]))
+                    - mTable.mRadii[mSlots[i]];
+            mDistances[i] = Math.max(distance, 0);
+        }
+        boolean reordered = sort();
+
+        if (!mMembershipChanged && !reordered && mReported) {
+            return false;
+        }
+        mReported = true;
+        listener.onRankingChanged(mIds, mCount);
+        return true;
+    }
+
+    /**
+     * @return The number of ranked fences
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The request ID of the fence at a rank, 0 being the nearest
+     */
+    public String getId(int rank) {
+        return mIds[rank];
+    }
+
+    /**
+     * @return The distance from the last update's location to the edge of
+     * the fence at a rank, in meters
+     */
+    public double getDistance(int rank) {
+        return mDistances[rank];
+    }
+
+    private void removeRow(String id) {
+        for (int i = 0; i < mCount; i++) {
+            if (mIds[i].equals(id)) {
+                mCount--;
+                System.arraycopy(mSlots, i + 1, mSlots, i, mCount - i);
+                System.arraycopy(mIds, i + 1, mIds, i, mCount - i);
+                System.arraycopy(mDistances, i + 1, mDistances, i, mCount - i);
+                mIds[mCount] = null;
+                return;
+            }
+        }
+    }
+
+    /*
+     * Insertion sort on distance, which is linear when little moved
+     *
+     * @return true if any row moved
+     */
+    private boolean sort() {
+        boolean moved = false;
+        for (int i = 1; i < mCount; i++) {
+            double distance = mDistances[i];
+            if (distance >= mDistances[i - 1]) {
+                continue;
+            }
+            int slot = mSlots[i];
+            String id = mIds[i];
+            int j = i - 1;
+            while (j >= 0 && mDistances[j] > distance) {
+                mSlots[j + 1] = mSlots[j];
+                mIds[j + 1] = mIds[j];
+                mDistances[j + 1] = mDistances[j];
+                j--;
+            }
+            mSlots[j + 1] = slot;
+            mIds[j + 1] = id;
+            mDistances[j + 1] = distance;
+            moved = true;
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * Keeps the K fences nearest the player registered with Location
+ * Services, which only accepts a limited number of fences at once.
+ *
+ * Nearness is the distance from the player to a fence's edge. When the
+ * player moves, the window is only recomputed if the move could have
+ * changed which fences are nearest: if the K-th nearest fence was d1 away
+ * and the next one d2, no move shorter than (d2 - d1) / 2 can swap them.
+ * A recompute asks the {@link GeofenceGridIndex} for fences near the
+ * player, widening the search until it has enough candidates, and keeps
+ * the K nearest with a bounded heap rather than sorting every fence.
+ * Only the fences that entered or left the window are reported, except
+ * that the first computed window is reported even if it's empty, so a
+ * listener always learns the window exists.
+ */
+public class NearestFenceWindow {
+
+    /**
+     * Receives the changes to the window.
+     */
+    public interface WindowListener {
+        /**
+         * @param added Fences that entered the window, ready to register
+         * @param removed Request IDs of fences that left the window
+         */
+        void onWindowChanged(List<Geofence> added, List<String> removed);
+    }
+
+    // Location Services accepts at most 100 geofences per app
+    public static final int DEFAULT_SIZE = 100;
+
+    // Search radius of the first query of a recompute, in meters
+    private static final double INITIAL_SEARCH_METERS = 500;
+
+    private final GeofenceTable mTable;
+    private final GeofenceGridIndex mIndex;
+    private final int mSize;
+
+    // Current window: slots and the IDs they held when they entered
+    private int[] mWindowSlots;
+    private String[] mWindowIds;
+    private int mWindowCount = 0;
+
+    // Membership of the current window, and scratch marks for a new
+    // selection, by slot
+    private boolean[] mInWindow = new boolean[0];
+    private boolean[] mSelected = new boolean[0];
+
+    // Where and how the window was last computed
+    private boolean mValid = false;
+    private double mAnchorLatitude;
+    private double mAnchorLongitude;
+    private double mStableMeters;
+
+    // Edge distance of the nearest fence outside the window, when computed
+    private double mOutsideMeters;
+
+    // Set once a window was reported
+    private boolean mReported = false;
+
+    // Bounded max-heap on edge distance used by a recompute
+    private final int[] mHeapSlots;
+    private final double[] mHeapDistances;
+    private int mHeapCount;
+
+    private final GeofenceGridIndex.Result mCandidates = new GeofenceGridIndex.Result();
+
+    public NearestFenceWindow(GeofenceTable table, GeofenceGridIndex index) {
+        this(table, index, DEFAULT_SIZE);
+    }
+
+    public NearestFenceWindow(GeofenceTable table, GeofenceGridIndex index, int size) {
+        mTable = table;
+        mIndex = index;
+        mSize = size;
+        mWindowSlots = new int[size];
+        mWindowIds = new String[size];
+
+        // One extra entry finds the nearest fence outside the window
+        mHeapSlots = new int[size + 1];
+        mHeapDistances = new double[size + 1];
+    }
+
+    /**
+     * Force a recompute on the next update, after fences were added to or
+     * removed from the table.
+     */
+    public void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * Report the whole current window to a listener that missed the
+     * earlier changes, as if every fence in it had just entered. Does
+     * nothing before the first window was reported, since that report
+     * reaches every listener passed to {@link #update}.
+     */
+    public void report(WindowListener listener) {
+        if (!mReported) {
+            return;
+        }
+        ArrayList<Geofence> added = new ArrayList<Geofence>(mWindowCount);
+        for (int i = 0; i < mWindowCount; i++) {
+            // Skip fences whose slot was reused since; the next update
+            // reports them gone
+            int slot = mWindowSlots[i];
+            if (mWindowIds[i] == mTable.mIds[slot]) {
+                added.add(mTable.toGeofence(slot));
+            }
+        }
+        listener.onWindowChanged(added, Collections.<String>emptyList());
+    }
+
+    /**
+     * Move the window to a new player location.
+     *
+     * @return {@code true} if the window changed and the listener was called
+     */
+    public boolean update(double latitude, double longitude, WindowListener listener) {
+        double search = INITIAL_SEARCH_METERS;
+        if (mValid) {
+            double metersPerDegreeLng = GeofenceGridIndex.metersPerDegreeLng(latitude);
+            double dy = (latitude - mAnchorLatitude) * GeofenceEvaluator.METERS_PER_DEGREE;
+            double dx = (longitude - mAnchorLongitude) * metersPerDegreeLng;
+            double moved = Math.sqrt(dx * dx + dy * dy);
+            if (moved < mStableMeters) {
+                return false;
+            }
+
+            // The previous K + 1 nearest fences are all within this reach
+            search = Math.max(search, mOutsideMeters + moved);
+        }
+
+        selectNearest(latitude, longitude, search);
+        mAnchorLatitude = latitude;
+        mAnchorLongitude = longitude;
+        mValid = true;
+        return applySelection(listener);
+    }
+
+    /*
+     * Fill the heap with the K + 1 fences nearest a point
+     */
+    private void selectNearest(double latitude, double longitude, double search) {
+        mHeapCount = 0;
+        int wanted = Math.min(mSize + 1, mTable.size());
+        double metersPerDegreeLng = GeofenceGridIndex.metersPerDegreeLng(latitude);
+
+        while (true) {
+            mIndex.queryRadius(latitude, longitude, search, mCandidates);
+            if (mCandidates.size() >= wanted || search > GeofenceEvaluator.EARTH_RADIUS * Math.PI) {
+                break;
+            }
+            search *= 2;
+        }
+
+        for (int i = 0; i < mCandidates.size(); i++) {
+            int slot = mCandidates.get(i);
+            double distance = Math.sqrt(
+                    mIndex.distanceSquared(latitude, longitude, metersPerDegreeLng, slot))
+                    - mTable.mRadii[slot];
+            offer(slot, Math.max(distance, 0));
+        }
+
+        // Moves shorter than half the gap at the window's edge change nothing
+        if (mHeapCount > mSize) {
+            double outside = mHeapDistances[0];
+            double inside = 0;
+            for (int i = 1; i < mHeapCount; i++) {
+                inside = Math.max(inside, mHeapDistances[i]);
+            }
+            mStableMeters = (outside - inside) / 2;
+            mOutsideMeters = outside;
+        } else {
+            // Every fence fits, so only table changes alter the window
+            mStableMeters = Double.MAX_VALUE;
+        }
+    }
+
+    private void offer(int slot, double distance) {
+        if (mHeapCount < mHeapSlots.length) {
+            int i = mHeapCount++;
+            mHeapSlots[i] = slot;
+            mHeapDistances[i] = distance;
+            siftUp(i);
+        } else if (distance < mHeapDistances[0]) {
+            mHeapSlots[0] = slot;
+            mHeapDistances[0] = distance;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mHeapDistances[parent] >= mHeapDistances[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < mHeapCount && mHeapDistances[left] > mHeapDistances[largest]) {
+                largest = left;
+            }
+            if (right < mHeapCount && mHeapDistances[right] > mHeapDistances[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slot = mHeapSlots[a];
+        mHeapSlots[a] = mHeapSlots[b];
+        mHeapSlots[b] = slot;
+        double distance = mHeapDistances[a];
+        mHeapDistances[a] = mHeapDistances[b];
+        mHeapDistances[b] = distance;
+    }
+
+    /*
+     * Replace the window with the heap contents, minus the farthest entry
+     * if it holds K + 1, and report the difference
+     */
+    private boolean applySelection(WindowListener listener) {
+        ensureCapacity(mTable.mSlotCount);
+
+        // Mark the new selection, skipping the root if it's the extra entry
+        int first = mHeapCount > mSize ? 1 : 0;
+        boolean[] selected = mSelected;
+        for (int i = first; i < mHeapCount; i++) {
+            selected[mHeapSlots[i]] = true;
+        }
+
+        // Fences that left the window, or whose slot now holds another fence
+        ArrayList<String> removed = new ArrayList<String>();
+        int kept = 0;
+        for (int i = 0; i < mWindowCount; i++) {
+            int slot = mWindowSlots[i];
+            String id = mWindowIds[i];
+            if (selected[slot] && id == mTable.mIds[slot]) {
+                mWindowSlots[kept] = slot;
+                mWindowIds[kept] = id;
+                kept++;
+            } else {
+                removed.add(id);
+                mInWindow[slot] = false;
+            }
+        }
+
+        // Fences that entered the window
+        ArrayList<Geofence> added = new ArrayList<Geofence>();
+        for (int i = first; i < mHeapCount; i++) {
+            int slot = mHeapSlots[i];
+            if (!mInWindow[slot]) {
+                mInWindow[slot] = true;
+                mWindowSlots[kept] = slot;
+                mWindowIds[kept] = mTable.mIds[slot];
+                kept++;
+                added.add(mTable.toGeofence(slot));
+            }
+        }
+        if (mWindowCount > kept) {
+            Arrays.fill(mWindowIds, kept, mWindowCount, null);
+        }
+        mWindowCount = kept;
+        for (int i = first; i < mHeapCount; i++) {
+            selected[mHeapSlots[i]] = false;
+        }
+
+        if (added.isEmpty() && removed.isEmpty() && mReported) {
+            return false;
+        }
+        mReported = true;
+        listener.onWindowChanged(added, removed);
+        return true;
+    }
+
+    private void ensureCapacity(int slots) {
+        if (mInWindow.length < slots) {
+            int capacity = Math.max(slots, mInWindow.length * 2);
+            mInWindow = Arrays.copyOf(mInWindow, capacity);
+            mSelected = new boolean[capacity];
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Storage for geofence values, implemented as a single file of fixed-width
+ * binary records (see {@link GeofenceRecord}).
+ *
+ * The file is scanned once when the store is opened to build an in-memory
+ * id to slot index. After that, a read or write touches exactly one record
+ * through positional {@link FileChannel} I/O, instead of parsing and
+ * rewriting every stored fence the way a SharedPreferences commit does.
+ * Cleared slots are reused by later writes.
+ */
+public class PackedGeofenceStore {
+
+    // The name of the file in which geofences are stored
+    static final String FILE_NAME = "geofences.bin";
+
+    // File header: magic, format version, record size, reserved
+    private static final int MAGIC = 0x47454f46;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // Number of records read per chunk while building the index
+    private static final int SCAN_CHUNK_RECORDS = 256;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+
+    // Slot number of every stored geofence, keyed by geofence ID
+    private final HashMap<String, Integer> mIndex = new HashMap<String, Integer>();
+
+    // Free slots available for reuse, used as a stack
+    private int[] mFreeSlots = new int[16];
+    private int mFreeCount = 0;
+
+    // Number of slots in the file, live or free
+    private int mSlotCount = 0;
+
+    // Reused buffer for single record I/O
+    private final ByteBuffer mRecordBuffer = ByteBuffer.allocate(GeofenceRecord.SIZE);
+
+    // Open the store in the application's private files directory
+    public PackedGeofenceStore(Context context) throws IOException {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    // Open the store backed by an arbitrary file
+    public PackedGeofenceStore(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mChannel = mRaf.getChannel();
+        try {
+            if (mChannel.size() < HEADER_SIZE) {
+                writeHeader();
+            } else {
+                checkHeader();
+                buildIndex();
+            }
+        } catch (IOException e) {
+            mRaf.close();
+            throw e;
+        }
+    }
+
+    /** Returns a set of IDs. One for each stored geofence
+     *
+     */
+    public synchronized Set<String> getStoredIDs() {
+        return new HashSet<String>(mIndex.keySet());
+    }
+
+    /**
+     * Returns a stored geofence by its id, or returns {@code null}
+     * if it's not found.
+     *
+     * @param id The ID of a stored geofence
+     * @return A geofence defined by its center and radius. See
+     * {@link SimpleGeofence}
+     */
+    public synchronized SimpleGeofence getGeofence(String id) {
+        Integer slot = mIndex.get(id);
+        if (slot == null) {
+            return null;
+        }
+        try {
+            mRecordBuffer.clear();
+            readFully(mRecordBuffer, slotOffset(slot));
+            mRecordBuffer.flip();
+            return GeofenceRecord.read(mRecordBuffer);
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to read geofence " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns every stored geofence, decoded in one sequential pass over
+     * the file.
+     *
+     * @return The stored geofences, in slot order
+     */
+    public synchronized List<SimpleGeofence> getAllGeofences() {
+        ArrayList<SimpleGeofence> result = new ArrayList<SimpleGeofence>(mIndex.size());
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_RECORDS * GeofenceRecord.SIZE);
+        try {
+            for (int first = 0; first < mSlotCount; first += SCAN_CHUNK_RECORDS) {
+                int count = Math.min(SCAN_CHUNK_RECORDS, mSlotCount - first);
+                chunk.clear();
+                chunk.limit(count * GeofenceRecord.SIZE);
+                readFully(chunk, slotOffset(first));
+                chunk.flip();
+                for (int i = 0; i < count; i++) {
+                    SimpleGeofence geofence = GeofenceRecord.read(chunk);
+                    if (geofence != null) {
+                        result.add(geofence);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to read " + mFile, e);
+        }
+        return result;
+    }
+
+    /**
+     * Save a geofence.
+     *
+     * @param geofence The {@link SimpleGeofence} containing the
+     * values you want to save
+     */
+    public synchronized void putGeofence(String id, SimpleGeofence geofence) {
+        try {
+            if (writeRecord(id, geofence)) {
+                mChannel.force(false);
+            }
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to write geofence " + id, e);
+        }
+    }
+
+    /**
+     * Save a batch of geofences, forcing the file to disk once for the
+     * whole batch.
+     *
+     * Every fence is checked before anything is written, so a fence too
+     * long to store rejects the whole batch. An I/O error partway through
+     * can still leave the fences before it written; each record is
+     * written whole or not at all, so retrying the batch is safe.
+     *
+     * @param geofences The geofences to save, each stored under its own ID
+     * @return {@code false} if the batch could not be written
+     */
+    public synchronized boolean putAll(Collection<SimpleGeofence> geofences) {
+        if (!allFit(geofences)) {
+            return false;
+        }
+        try {
+            for (SimpleGeofence geofence : geofences) {
+                if (!writeRecord(geofence.getId(), geofence)) {
+                    return false;
+                }
+            }
+            mChannel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to write geofence batch", e);
+            return false;
+        }
+    }
+
+    /**
+     * Write a set of changes, forcing the file to disk once for the whole
+     * set. Like {@link #putAll}, a fence too long to store rejects every
+     * change before anything is written, and an I/O error partway through
+     * can leave the changes before it applied.
+     *
+     * @param changes The geofences to save and the IDs to clear. See
+     * {@link GeofenceChangeSet}
+     * @return {@code false} if the changes could not be written
+     */
+    public synchronized boolean applyChanges(GeofenceChangeSet changes) {
+        Collection<SimpleGeofence> puts = changes.getPuts();
+        if (!allFit(puts)) {
+            return false;
+        }
+        try {
+            for (SimpleGeofence geofence : puts) {
+                if (!writeRecord(geofence.getId(), geofence)) {
+                    return false;
+                }
+            }
+            for (String id : changes.getClears()) {
+                freeRecord(id);
+            }
+            mChannel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to write geofence changes", e);
+            return false;
+        }
+    }
+
+    public synchronized void clearGeofence(String id) {
+        try {
+            if (freeRecord(id)) {
+                mChannel.force(false);
+            }
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to clear geofence " + id, e);
+        }
+    }
+
+    /**
+     * Closes the underlying file. The store can't be used afterwards.
+     */
+    public synchronized void close() {
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to close " + mFile, e);
+        }
+    }
+
+    /*
+     * @return false, after logging it, if any fence is too long to store
+     */
+    private static boolean allFit(Collection<SimpleGeofence> geofences) {
+        SimpleGeofence misfit = GeofenceRecord.findMisfit(geofences);
+        if (misfit != null) {
+            Log.e(GeofenceUtils.APPTAG, "Geofence " + misfit.getId()
+                    + " has an id or message id too long to store; nothing written");
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Writes one record, reusing the fence's existing slot, then a free
+     * slot, then appending. Does not force the channel.
+     *
+     * @return false if the fence's id or message id is too long for a
+     * record, in which case nothing was written
+     */
+    private boolean writeRecord(String id, SimpleGeofence geofence) throws IOException {
+        if (!GeofenceRecord.fits(geofence)) {
+            Log.e(GeofenceUtils.APPTAG,
+                    "Geofence " + id + " has an id or message id too long to store");
+            return false;
+        }
+
+        // The slot is only taken once the record is written
+        Integer existing = mIndex.get(id);
+        int slot;
+        if (existing != null) {
+            slot = existing;
+        } else if (mFreeCount > 0) {
+            slot = mFreeSlots[mFreeCount - 1];
+        } else {
+            slot = mSlotCount;
+        }
+
+        mRecordBuffer.clear();
+        GeofenceRecord.write(mRecordBuffer, geofence);
+        mRecordBuffer.flip();
+        writeFully(mRecordBuffer, slotOffset(slot));
+        if (existing == null) {
+            if (slot == mSlotCount) {
+                mSlotCount++;
+            } else {
+                mFreeCount--;
+            }
+        }
+        mIndex.put(id, slot);
+        return true;
+    }
+
+    /*
+     * Marks a fence's slot as free. Does not force the channel.
+     */
+    private boolean freeRecord(String id) throws IOException {
+        Integer slot = mIndex.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        ByteBuffer flag = ByteBuffer.allocate(1);
+        flag.put(GeofenceRecord.FLAG_FREE);
+        flag.flip();
+        writeFully(flag, slotOffset(slot));
+        pushFreeSlot(slot);
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(GeofenceRecord.SIZE).putInt(0);
+        header.flip();
+        mChannel.truncate(0);
+        writeFully(header, 0);
+        mChannel.force(true);
+    }
+
+    private void checkHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC
+                || header.getInt() != FORMAT_VERSION
+                || header.getInt() != GeofenceRecord.SIZE) {
+            throw new IOException("Unrecognized geofence file " + mFile);
+        }
+    }
+
+    /*
+     * Scans every record once, in large sequential chunks, to find the
+     * live IDs and the free slots. A trailing partial record left by an
+     * interrupted append is dropped.
+     */
+    private void buildIndex() throws IOException {
+        long size = mChannel.size();
+        mSlotCount = (int) ((size - HEADER_SIZE) / GeofenceRecord.SIZE);
+        if (slotOffset(mSlotCount) != size) {
+            mChannel.truncate(slotOffset(mSlotCount));
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_RECORDS * GeofenceRecord.SIZE);
+        for (int first = 0; first < mSlotCount; first += SCAN_CHUNK_RECORDS) {
+            int count = Math.min(SCAN_CHUNK_RECORDS, mSlotCount - first);
+            chunk.clear();
+            chunk.limit(count * GeofenceRecord.SIZE);
+            readFully(chunk, slotOffset(first));
+            for (int i = 0; i < count; i++) {
+                chunk.position(i * GeofenceRecord.SIZE);
+                String id = GeofenceRecord.readId(chunk);
+                if (id != null) {
+                    mIndex.put(id, first + i);
+                } else {
+                    pushFreeSlot(first + i);
+                }
+            }
+        }
+    }
+
+    private void pushFreeSlot(int slot) {
+        if (mFreeCount == mFreeSlots.length) {
+            int[] grown = new int[mFreeSlots.length * 2];
+            System.arraycopy(mFreeSlots, 0, grown, 0, mFreeCount);
+            mFreeSlots = grown;
+        }
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    private static long slotOffset(int slot) {
+        return HEADER_SIZE + (long) slot * GeofenceRecord.SIZE;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = mChannel.read(buf, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + mFile);
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += mChannel.write(buf, position);
+        }
+    }
+}
@@ -4,25 +4,31 @@ import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.LocationClient;
 
 import android.app.IntentService;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This class receives geofence transition events from Location Services, in the
  * form of an Intent containing the transition type and geofence id(s) that triggered
  * the event.
+ *
+ * Each transition is recorded in the {@link TransitionQueue} before
+ * anything else happens, and is notified and broadcast from there, so a
+ * burst doesn't hold up this service's thread and a transition outlives
+ * the death of the process.
  */
 public class ReceiveTransitionsIntentService extends IntentService {
 
+    // Delivers queued transitions; one per process
+    private static Delivery sDelivery;
+
     /**
      * Sets an identifier for this class' background thread
      */
@@ -76,27 +82,36 @@ public class ReceiveTransitionsIntentService extends IntentService {
                     (transition == Geofence.GEOFENCE_TRANSITION_ENTER)
                     ||
                     (transition == Geofence.GEOFENCE_TRANSITION_EXIT)
+                    ||
+                    (transition == GeofenceEvaluator.GEOFENCE_TRANSITION_DWELL)
                ) {
 
-                // Post a notification
                 List<Geofence> geofences = LocationClient.getTriggeringGeofences(intent);
                 String[] geofenceIds = new String[geofences.size()];
                 for (int index = 0; index < geofences.size() ; index++) {
                     geofenceIds[index] = geofences.get(index).getRequestId();
                 }
-                String ids = TextUtils.join(GeofenceUtils.GEOFENCE_ID_DELIMITER,geofenceIds);
-                String transitionType = getTransitionString(transition);
 
-                sendNotification(transitionType, ids);
+                // Record the transition before any side effect, so it's
+                // delivered even if the process dies first
+                TransitionQueue queue;
+                try {
+                    queue = TransitionQueue.getInstance(this);
+                    queue.append(transition, geofenceIds, System.currentTimeMillis());
+                } catch (IOException e) {
+                    // Deliver it directly rather than lose it
+                    Log.e(GeofenceUtils.APPTAG, "Unable to queue geofence transition", e);
+                    List<TransitionQueue.Transition> single =
+                            new ArrayList<TransitionQueue.Transition>(1);
+                    single.add(new TransitionQueue.Transition(
+                            transition, System.currentTimeMillis(), geofenceIds, 0));
+                    getDelivery(this).onTransitions(single, null);
+                    return;
+                }
 
-                // Log the transition type and a message
-                Log.d(GeofenceUtils.APPTAG,
-                        getString(
-                                R.string.geofence_transition_notification_title,
-                                transitionType,
-                                ids));
-                Log.d(GeofenceUtils.APPTAG,
-                        getString(R.string.geofence_transition_notification_text));
+                // Notify and broadcast on the queue's thread, along with
+                // anything an earlier process left undelivered
+                queue.drain(getDelivery(this));
 
             // An invalid transition was reported
             } else {
@@ -108,65 +123,130 @@ public class ReceiveTransitionsIntentService extends IntentService {
     }
 
     /**
-     * Posts a notification in the notification bar when a transition is detected.
-     * If the user clicks the notification, control goes to the main Activity.
-     * @param transitionType The type of transition that occurred.
-     *
+     * Delivers any transitions an earlier process recorded but didn't
+     * deliver before it died. Returns immediately.
+     * @param context Any context of the app
      */
-    private void sendNotification(String transitionType, String ids) {
+    public static void deliverPending(Context context) {
+        try {
+            TransitionQueue queue = TransitionQueue.getInstance(context);
+            if (queue.getBacklog() > 0) {
+                queue.drain(getDelivery(context));
+            }
+        } catch (IOException e) {
+            Log.e(GeofenceUtils.APPTAG, "Unable to open geofence transition queue", e);
+        }
+    }
 
-        // Create an explicit content Intent that starts the main Activity
-        Intent notificationIntent =
-                new Intent(getApplicationContext(),MainActivity.class);
+    private static synchronized Delivery getDelivery(Context context) {
+        if (sDelivery == null) {
+            sDelivery = new Delivery(context.getApplicationContext());
+        }
+        return sDelivery;
+    }
 
-        // Construct a task stack
-        TaskStackBuilder stackBuilder = TaskStackBuilder.create(this);
+    /**
+     * Notifies and broadcasts queued transitions.
+     */
+    private static class Delivery implements TransitionQueue.Consumer {
 
-        // Adds the main Activity to the task stack as the parent
-        stackBuilder.addParentStack(MainActivity.class);
+        private final Context mContext;
 
-        // Push the content Intent onto the stack
-        stackBuilder.addNextIntent(notificationIntent);
+        Delivery(Context context) {
+            mContext = context;
+        }
 
-        // Get a PendingIntent containing the entire back stack
-        PendingIntent notificationPendingIntent =
-                stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+        /*
+         * The transitions are acknowledged once the notification showing
+         * the last of them was posted, since the notifier holds them back
+         * for a while and this process may die meanwhile
+         */
+        @Override
+        public void onTransitions(List<TransitionQueue.Transition> transitions, Runnable ack) {
+            int last = transitions.size() - 1;
+            for (int i = 0; i <= last; i++) {
+                TransitionQueue.Transition transition = transitions.get(i);
+                String transitionType = getTransitionString(transition.type);
+
+                // Resolve the message ids of the triggering geofences, and
+                // show those, falling back to the request id of a fence
+                // that's no longer stored
+                String[] msgIds = getMsgIds(transition.ids);
+                String[] shown = new String[msgIds.length];
+                for (int j = 0; j < msgIds.length; j++) {
+                    shown[j] = msgIds[j] != null ? msgIds[j] : transition.ids[j];
+                }
+                String messages = TextUtils.join(GeofenceUtils.GEOFENCE_ID_DELIMITER, shown);
 
-        // Get a notification builder that's compatible with platform versions >= 4
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+                // Notify, coalesced with any other transitions in a burst
+                TransitionNotifier.getInstance(mContext).notifyTransition(transitionType,
+                        messages, i == last ? ack : null);
 
-        // Set the notification contents
-        builder.setSmallIcon(R.drawable.ic_launcher)
-               .setContentTitle(
-                       getString(R.string.geofence_transition_notification_title,
-                               transitionType, ids))
-               .setContentText(getString(R.string.geofence_transition_notification_text))
-               .setContentIntent(notificationPendingIntent);
+                // Broadcast the transition *locally* to other components in this app
+                Intent broadcastIntent = new Intent(GeofenceUtils.ACTION_GEOFENCE_TRANSITION)
+                        .addCategory(GeofenceUtils.CATEGORY_LOCATION_SERVICES)
+                        .putExtra(GeofenceUtils.EXTRA_GEOFENCE_TRANSITION_TYPE, transition.type)
+                        .putExtra(GeofenceUtils.EXTRA_GEOFENCE_IDS, transition.ids)
+                        .putExtra(GeofenceUtils.EXTRA_GEOFENCE_MSG_IDS, msgIds);
+                LocalBroadcastManager.getInstance(mContext).sendBroadcast(broadcastIntent);
 
-        // Get an instance of the Notification manager
-        NotificationManager mNotificationManager =
-            (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+                // Log the transition type and a message
+                Log.d(GeofenceUtils.APPTAG,
+                        mContext.getString(
+                                R.string.geofence_transition_notification_title,
+                                transitionType,
+                                TextUtils.join(GeofenceUtils.GEOFENCE_ID_DELIMITER,
+                                        transition.ids)));
+            }
+            if (transitions.size() > 1) {
+                Log.d(GeofenceUtils.APPTAG, "Delivered a batch of " + transitions.size()
+                        + " geofence transitions");
+            }
+        }
 
-        // Issue the notification
-        mNotificationManager.notify(0, builder.build());
-    }
+        /**
+         * Looks up the message id of each triggering geofence, in the
+         * {@link GeofenceRepository} if it's already loaded in this process,
+         * and otherwise in {@link MsgIdIndex}, which loads only the ids.
+         * @param geofenceIds The request ids of the triggering geofences
+         * @return The message ids, or {@code null} for fences that aren't stored
+         */
+        private String[] getMsgIds(String[] geofenceIds) {
+            GeofenceRepository repository = GeofenceRepository.getInstance(mContext);
+            if (!repository.isLoaded()) {
+                return MsgIdIndex.resolve(mContext, geofenceIds);
+            }
+            GeofenceRepository.Snapshot snapshot = repository.getSnapshot();
+            String[] msgIds = new String[geofenceIds.length];
+            for (int index = 0; index < geofenceIds.length; index++) {
+                SimpleGeofence geofence = snapshot.get(geofenceIds[index]);
+                if (geofence != null) {
+                    msgIds[index] = geofence.getMsgId();
+                }
+            }
+            return msgIds;
+        }
 
-    /**
-     * Maps geofence transition types to their human-readable equivalents.
-     * @param transitionType A transition type constant defined in Geofence
-     * @return A String indicating the type of transition
-     */
-    private String getTransitionString(int transitionType) {
-        switch (transitionType) {
+        /**
+         * Maps geofence transition types to their human-readable equivalents.
+         * @param transitionType A transition type constant defined in Geofence
+         * @return A String indicating the type of transition
+         */
+        private String getTransitionString(int transitionType) {
+            switch (transitionType) {
 
-            case Geofence.GEOFENCE_TRANSITION_ENTER:
-                return getString(R.string.geofence_transition_entered);
+                case Geofence.GEOFENCE_TRANSITION_ENTER:
+                    return mContext.getString(R.string.geofence_transition_entered);
 
-            case Geofence.GEOFENCE_TRANSITION_EXIT:
-                return getString(R.string.geofence_transition_exited);
+                case Geofence.GEOFENCE_TRANSITION_EXIT:
+                    return mContext.getString(R.string.geofence_transition_exited);
 
-            default:
-                return getString(R.string.geofence_transition_unknown);
+                case GeofenceEvaluator.GEOFENCE_TRANSITION_DWELL:
+                    return mContext.getString(R.string.geofence_transition_dwelling);
+
+                default:
+                    return mContext.getString(R.string.geofence_transition_unknown);
+            }
         }
     }
 }
@@ -31,6 +31,9 @@ public class SimpleGeofence {
     private long mExpirationDuration;
     private int mTransitionType;
 
+    // Formatted on first use; everything it shows is final
+    private String mLabel;
+
     /**
      * @param geofenceId The Geofence's request ID
      * @param latitude Latitude of the Geofence's center. The value is not checked for validity.
@@ -146,9 +149,23 @@ public class SimpleGeofence {
                        .build();
     }
     
+    /**
+     * Get the text shown for this geofence in a list, formatted on the
+     * first call and cached
+     * @return The ID, center and radius of the geofence
+     */
+    public String getLabel() {
+        String label = mLabel;
+        if (label == null) {
+            label = String.format("%s: %.2f, %.2f, %.2f",
+                    getId(), getLatitude(), getLongitude(), getRadius());
+            mLabel = label;
+        }
+        return label;
+    }
+
+    @Override
     public String toString() {
-    	String msg = String.format("%s: %.2f, %.2f, %.2f",
-    			getId(), getLatitude(), getLongitude(), getRadius());
-    	return msg;
+        return getLabel();
     }
 }
@@ -16,20 +16,35 @@
 
 package com.mojo.scavenger;
 
-import java.util.AbstractSet;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 /**
  * Storage for geofence values, implemented in SharedPreferences.
  * For a production app, use a content provider that's synced to the
  * web or loads geofence data based on current location.
+ *
+ * The storage schema is versioned. Installs start on the legacy schema,
+ * with each field of each fence in its own SharedPreferences key.
+ * {@link GeofenceStoreMigrator} moves them to the compact schema, a
+ * {@link JournaledGeofenceStore} in the app's files directory. Until the
+ * migration completes, every call is served from the legacy keys.
  */
 public class SimpleGeofenceStore {
 
@@ -44,11 +59,59 @@ public class SimpleGeofenceStore {
     private static final String FENCELIST_ID_LIST_ID =
     				"FENCELIST_LIST";
 
+    // Key of the storage schema version
+    private static final String FENCELIST_SCHEMA_VERSION_ID =
+                    "FENCELIST_SCHEMA_VERSION";
+
+    // Schema versions: per-field preference keys, then a journaled file
+    static final int SCHEMA_LEGACY = 1;
+    static final int SCHEMA_COMPACT = 2;
+
+    // Field key suffixes, indexed by FenceFields field number
+    private static final String[] FIELD_KEYS = {
+        GeofenceUtils.KEY_LATITUDE,
+        GeofenceUtils.KEY_LONGITUDE,
+        GeofenceUtils.KEY_RADIUS,
+        GeofenceUtils.KEY_EXPIRATION_DURATION,
+        GeofenceUtils.KEY_TRANSITION_TYPE,
+        GeofenceUtils.KEY_MSGID_TYPE
+    };
+
+    private static final int KEY_PREFIX_LENGTH = GeofenceUtils.KEY_PREFIX.length();
+
+    /*
+     * Process-wide read-through cache of decoded geofences, keyed by ID.
+     * Writes through this class update it, so it never holds a fence that
+     * differs from storage. Once getAllGeofences() has filled it,
+     * sCacheComplete is set and the cache holds every stored fence.
+     * sLock serializes every write and cache fill, and the schema switch.
+     */
+    private static final ConcurrentHashMap<String, SimpleGeofence> sCache =
+            new ConcurrentHashMap<String, SimpleGeofence>();
+    private static final Object sLock = new Object();
+    private static boolean sCacheComplete = false;
+
+    // The compact store, opened once per process
+    private static JournaledGeofenceStore sCompactStore;
+
+    private final Context mContext;
+
     // Create the SharedPreferences storage with private access only
     public SimpleGeofenceStore(Context context) {
+        mContext = context.getApplicationContext();
         mPrefs =
         		PreferenceManager.getDefaultSharedPreferences(context);
     }
+
+    /*
+     * Use other preferences for the legacy schema, for example to time
+     * the legacy reads against a fixture. Writes still update the
+     * process-wide cache, so only use the legacy methods that bypass it.
+     */
+    SimpleGeofenceStore(Context context, SharedPreferences prefs) {
+        mContext = context.getApplicationContext();
+        mPrefs = prefs;
+    }
     
     /** Returns a set of IDs. One for each stored geofence
      * 
@@ -56,9 +119,38 @@ public class SimpleGeofenceStore {
     public Set<String> getStoredIDs() {
     	Set<String> ret;
     	
+    	if (isMigrated()) {
+    	    JournaledGeofenceStore compact = getCompactStore(mContext);
+    	    return compact != null ? compact.getStoredIDs() : null;
+    	}
     	ret = mPrefs.getStringSet(FENCELIST_ID_LIST_ID, null);
     	return ret;
     }
+
+    /**
+     * @return {@code true} once the fences have been moved to the compact
+     * schema
+     */
+    public boolean isMigrated() {
+        return mPrefs.getInt(FENCELIST_SCHEMA_VERSION_ID, SCHEMA_LEGACY) >= SCHEMA_COMPACT;
+    }
+
+    /*
+     * Open the compact store the first time it's needed in this process
+     *
+     * @return The store, or null if its files can't be opened
+     */
+    static synchronized JournaledGeofenceStore getCompactStore(Context context) {
+        if (sCompactStore == null) {
+            try {
+                sCompactStore = new JournaledGeofenceStore(
+                        new File(context.getFilesDir(), PackedGeofenceStore.FILE_NAME));
+            } catch (IOException e) {
+                Log.e(GeofenceUtils.APPTAG, "Unable to open compact geofence store", e);
+            }
+        }
+        return sCompactStore;
+    }
     
 
     /**
@@ -71,6 +163,32 @@ public class SimpleGeofenceStore {
      */
     public SimpleGeofence getGeofence(String id) {
 
+        SimpleGeofence cached = sCache.get(id);
+        if (cached != null) {
+            return cached;
+        }
+
+        synchronized (sLock) {
+            SimpleGeofence geofence;
+            if (isMigrated()) {
+                JournaledGeofenceStore compact = getCompactStore(mContext);
+                geofence = compact != null ? compact.getGeofence(id) : null;
+            } else {
+                geofence = readGeofence(id);
+            }
+            if (geofence != null) {
+                sCache.put(id, geofence);
+            }
+            return geofence;
+        }
+    }
+
+    /*
+     * Read a geofence field by field from the legacy SharedPreferences
+     * keys, bypassing the cache
+     */
+    SimpleGeofence readGeofence(String id) {
+
         /*
          * Get the latitude for the geofence identified by id, or GeofenceUtils.INVALID_VALUE
          * if it doesn't exist
@@ -136,6 +254,95 @@ public class SimpleGeofenceStore {
         }
     }
 
+    /**
+     * Returns every stored geofence, decoded in a single pass over the
+     * stored preferences.
+     *
+     * Instead of building six field keys per ID and looking each one up,
+     * this walks the stored entries once and recognizes each field by its
+     * key suffix. Geofences with missing or invalid fields are skipped, as
+     * {@link #getGeofence(String)} would return {@code null} for them.
+     * After the first call in a process the result is served from the
+     * cache.
+     *
+     * @return The stored geofences, in no particular order
+     */
+    public List<SimpleGeofence> getAllGeofences() {
+
+        synchronized (sLock) {
+            if (!sCacheComplete) {
+                List<SimpleGeofence> stored;
+                if (isMigrated()) {
+                    JournaledGeofenceStore compact = getCompactStore(mContext);
+                    stored = compact != null
+                            ? compact.getAllGeofences()
+                            : Collections.<SimpleGeofence>emptyList();
+                } else {
+                    stored = readAllGeofences();
+                }
+                for (SimpleGeofence geofence : stored) {
+                    sCache.put(geofence.getId(), geofence);
+                }
+                sCacheComplete = true;
+            }
+            return new ArrayList<SimpleGeofence>(sCache.values());
+        }
+    }
+
+    /*
+     * Decode every geofence stored in the legacy SharedPreferences keys,
+     * bypassing the cache
+     */
+    List<SimpleGeofence> readAllGeofences() {
+
+        Map<String, ?> entries = mPrefs.getAll();
+        HashMap<String, FenceFields> fences = new HashMap<String, FenceFields>();
+
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(GeofenceUtils.KEY_PREFIX)) {
+                continue;
+            }
+
+            // Find which field this key holds
+            int field = -1;
+            for (int i = 0; i < FIELD_KEYS.length; i++) {
+                if (key.endsWith(FIELD_KEYS[i])) {
+                    field = i;
+                    break;
+                }
+            }
+            if (field < 0) {
+                continue;
+            }
+            int idEnd = key.length() - FIELD_KEYS[field].length() - 1;
+            if (idEnd < KEY_PREFIX_LENGTH || key.charAt(idEnd) != '_') {
+                continue;
+            }
+
+            String id = key.substring(KEY_PREFIX_LENGTH, idEnd);
+            FenceFields fence = fences.get(id);
+            if (fence == null) {
+                fence = new FenceFields();
+                fences.put(id, fence);
+            }
+            fence.set(field, entry.getValue());
+        }
+
+        // Only fences listed in the id list are considered stored
+        Set<String> ids = mPrefs.getStringSet(FENCELIST_ID_LIST_ID, null);
+        ArrayList<SimpleGeofence> result = new ArrayList<SimpleGeofence>(fences.size());
+        for (Map.Entry<String, FenceFields> entry : fences.entrySet()) {
+            if (ids != null && ids.contains(entry.getKey())) {
+                SimpleGeofence geofence = entry.getValue().toGeofence(entry.getKey());
+                if (geofence != null) {
+                    result.add(geofence);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Save a geofence.
 
@@ -144,6 +351,25 @@ public class SimpleGeofenceStore {
      */
     public void putGeofence(String id, SimpleGeofence geofence) {
 
+        synchronized (sLock) {
+            if (isMigrated()) {
+                JournaledGeofenceStore compact = getCompactStore(mContext);
+                if (compact != null) {
+                    compact.putGeofence(id, geofence);
+                }
+            } else {
+                putLegacyGeofence(id, geofence);
+            }
+
+            // Keep the cache and message ID index in step with storage
+            sCache.put(id, geofence);
+            MsgIdIndex.onPut(id, geofence.getMsgId());
+            MsgIdIndex.onStored(mContext);
+        }
+    }
+
+    private void putLegacyGeofence(String id, SimpleGeofence geofence) {
+
         /*
          * Get a SharedPreferences editor instance. Among other
          * things, SharedPreferences ensures that updates are atomic
@@ -155,6 +381,80 @@ public class SimpleGeofenceStore {
         ArrayList<String> ids = new ArrayList<String>(_ids);
         
         // Write the Geofence values to SharedPreferences
+        putGeofenceFields(editor, id, geofence);
+        
+        // Update fencelist id list
+        ids.add(id);        
+        Set<String> new_ids = new CopyOnWriteArraySet<String>(ids);        
+        editor.putStringSet(FENCELIST_ID_LIST_ID, new_ids);
+        
+        // Commit the changes
+        editor.commit();
+    }
+
+    /**
+     * Save a batch of geofences with a single write.
+     *
+     * The id list is read and rewritten once for the whole batch, and all
+     * fields are staged in one editor, so saving N geofences costs one
+     * preferences write instead of N.
+     *
+     * @param geofences The geofences to save, each stored under its own ID
+     * @param async If {@code true}, the write is handed to a background
+     * thread with {@link Editor#apply()} and this call does not block on
+     * disk. Otherwise the write is committed before returning.
+     * @return {@code false} if a synchronous commit failed
+     */
+    public boolean putAll(Collection<SimpleGeofence> geofences, boolean async) {
+
+        synchronized (sLock) {
+            boolean written;
+            if (isMigrated()) {
+                JournaledGeofenceStore compact = getCompactStore(mContext);
+                written = compact != null && compact.putAll(geofences);
+            } else {
+                written = putAllLegacy(geofences, async);
+            }
+            if (!written) {
+                return false;
+            }
+
+            // Only what reached storage goes in the cache and index
+            for (SimpleGeofence geofence : geofences) {
+                sCache.put(geofence.getId(), geofence);
+                MsgIdIndex.onPut(geofence.getId(), geofence.getMsgId());
+            }
+            MsgIdIndex.onStored(mContext);
+            return true;
+        }
+    }
+
+    boolean putAllLegacy(Collection<SimpleGeofence> geofences, boolean async) {
+
+        Editor editor = mPrefs.edit();
+
+        // Stage every geofence against a single copy of the id list
+        Set<String> ids = new HashSet<String>(
+                mPrefs.getStringSet(FENCELIST_ID_LIST_ID, Collections.<String>emptySet()));
+        for (SimpleGeofence geofence : geofences) {
+            putGeofenceFields(editor, geofence.getId(), geofence);
+            ids.add(geofence.getId());
+        }
+        editor.putStringSet(FENCELIST_ID_LIST_ID, ids);
+
+        // Persist everything in one write
+        if (async) {
+            editor.apply();
+            return true;
+        }
+        return editor.commit();
+    }
+
+    /*
+     * Stage the flattened fields of a geofence in an editor
+     */
+    private void putGeofenceFields(Editor editor, String id, SimpleGeofence geofence) {
+
         editor.putFloat(
                 getGeofenceFieldKey(id, GeofenceUtils.KEY_LATITUDE),
                 (float) geofence.getLatitude());
@@ -178,18 +478,27 @@ public class SimpleGeofenceStore {
         editor.putString(
         		getGeofenceFieldKey(id, GeofenceUtils.KEY_MSGID_TYPE),
         		geofence.getMsgId());
-        
-        // Update fencelist id list
-        ids.add(id);        
-        Set<String> new_ids = new CopyOnWriteArraySet<String>(ids);        
-        editor.putStringSet(FENCELIST_ID_LIST_ID, new_ids);
-        
-        // Commit the changes
-        editor.commit();
     }
 
     public void clearGeofence(String id) {
 
+        synchronized (sLock) {
+            if (isMigrated()) {
+                JournaledGeofenceStore compact = getCompactStore(mContext);
+                if (compact != null) {
+                    compact.clearGeofence(id);
+                }
+            } else {
+                clearLegacyGeofence(id);
+            }
+            sCache.remove(id);
+            MsgIdIndex.onClear(id);
+            MsgIdIndex.onStored(mContext);
+        }
+    }
+
+    private void clearLegacyGeofence(String id) {
+
         // Remove a flattened geofence object from storage by removing all of its keys
         Editor editor = mPrefs.edit();
         
@@ -201,12 +510,144 @@ public class SimpleGeofenceStore {
         editor.putStringSet(FENCELIST_ID_LIST_ID, new_ids);
         
         // Remove all references to this fence
+        removeGeofenceFields(editor, id);
+        editor.commit();
+    }
+
+    /**
+     * Persist only the geofences that changed, with a single write.
+     *
+     * @param changes The geofences added, changed or removed since the
+     * last persist. See {@link GeofenceChangeSet}
+     * @param async If {@code true}, the write is handed to a background
+     * thread with {@link Editor#apply()}. Otherwise the write is committed
+     * before returning.
+     * @return {@code false} if a synchronous commit failed
+     */
+    public boolean applyChanges(GeofenceChangeSet changes, boolean async) {
+
+        if (changes.isEmpty()) {
+            return true;
+        }
+
+        synchronized (sLock) {
+            boolean written;
+            if (isMigrated()) {
+                JournaledGeofenceStore compact = getCompactStore(mContext);
+                written = compact != null && compact.applyChanges(changes);
+            } else {
+                written = applyLegacyChanges(changes, async);
+            }
+            if (!written) {
+                return false;
+            }
+
+            // Only what reached storage goes in the cache and index
+            for (SimpleGeofence geofence : changes.getPuts()) {
+                sCache.put(geofence.getId(), geofence);
+                MsgIdIndex.onPut(geofence.getId(), geofence.getMsgId());
+            }
+            for (String id : changes.getClears()) {
+                sCache.remove(id);
+                MsgIdIndex.onClear(id);
+            }
+            MsgIdIndex.onStored(mContext);
+            return true;
+        }
+    }
+
+    private boolean applyLegacyChanges(GeofenceChangeSet changes, boolean async) {
+
+        Editor editor = mPrefs.edit();
+
+        // Stage the delta against a single copy of the id list
+        Set<String> ids = new HashSet<String>(
+                mPrefs.getStringSet(FENCELIST_ID_LIST_ID, Collections.<String>emptySet()));
+        Collection<SimpleGeofence> puts = changes.getPuts();
+        Set<String> clears = changes.getClears();
+        for (SimpleGeofence geofence : puts) {
+            putGeofenceFields(editor, geofence.getId(), geofence);
+            ids.add(geofence.getId());
+        }
+        for (String id : clears) {
+            removeGeofenceFields(editor, id);
+            ids.remove(id);
+        }
+        editor.putStringSet(FENCELIST_ID_LIST_ID, ids);
+
+        if (async) {
+            editor.apply();
+            return true;
+        }
+        return editor.commit();
+    }
+
+    /*
+     * Complete a migration by bringing the compact store exactly in line
+     * with the legacy keys, then switching schema and dropping the legacy
+     * keys in one commit. Holding sLock keeps writes out while the two
+     * stores are compared.
+     *
+     * @return false if the switch could not be committed
+     */
+    boolean finishMigration(JournaledGeofenceStore compact) {
+        synchronized (sLock) {
+            if (isMigrated()) {
+                return true;
+            }
+
+            // Catch up with writes made to the legacy keys meanwhile
+            GeofenceChangeSet catchUp = new GeofenceChangeSet();
+            Set<String> legacyIds = new HashSet<String>();
+            for (SimpleGeofence geofence : readAllGeofences()) {
+                legacyIds.add(geofence.getId());
+                if (!sameGeofence(geofence, compact.getGeofence(geofence.getId()))) {
+                    catchUp.markPut(geofence);
+                }
+            }
+            for (String id : compact.getStoredIDs()) {
+                if (!legacyIds.contains(id)) {
+                    catchUp.markCleared(id);
+                }
+            }
+            if (!compact.applyChanges(catchUp)) {
+                return false;
+            }
+            compact.sync();
+
+            // Switch schema and drop the legacy keys atomically
+            Editor editor = mPrefs.edit();
+            for (String key : mPrefs.getAll().keySet()) {
+                if (key.startsWith(GeofenceUtils.KEY_PREFIX)) {
+                    editor.remove(key);
+                }
+            }
+            editor.remove(FENCELIST_ID_LIST_ID);
+            editor.putInt(FENCELIST_SCHEMA_VERSION_ID, SCHEMA_COMPACT);
+            return editor.commit();
+        }
+    }
+
+    private static boolean sameGeofence(SimpleGeofence a, SimpleGeofence b) {
+        return b != null
+                && a.getLatitude() == b.getLatitude()
+                && a.getLongitude() == b.getLongitude()
+                && a.getRadius() == b.getRadius()
+                && a.getExpirationDuration() == b.getExpirationDuration()
+                && a.getTransitionType() == b.getTransitionType()
+                && a.getMsgId().equals(b.getMsgId());
+    }
+
+    /*
+     * Stage the removal of every flattened field of a geofence
+     */
+    private void removeGeofenceFields(Editor editor, String id) {
         editor.remove(getGeofenceFieldKey(id, GeofenceUtils.KEY_LATITUDE));
         editor.remove(getGeofenceFieldKey(id, GeofenceUtils.KEY_LONGITUDE));
         editor.remove(getGeofenceFieldKey(id, GeofenceUtils.KEY_RADIUS));
         editor.remove(getGeofenceFieldKey(id, GeofenceUtils.KEY_EXPIRATION_DURATION));
         editor.remove(getGeofenceFieldKey(id, GeofenceUtils.KEY_TRANSITION_TYPE));
-        editor.commit();
+        editor.remove(getGeofenceFieldKey(id, GeofenceUtils.KEY_MSGID_TYPE));
     }
 
     /**
@@ -226,4 +667,51 @@ public class SimpleGeofenceStore {
                 "_" +
                 fieldName;
     }
+
+    /*
+     * The flattened fields of one geofence, collected while scanning the
+     * stored entries in getAllGeofences()
+     */
+    private static class FenceFields {
+        private static final int ALL_FIELDS = (1 << FIELD_KEYS.length) - 1;
+
+        int mPresent;
+        float mLatitude;
+        float mLongitude;
+        float mRadius;
+        long mExpirationDuration;
+        int mTransitionType;
+        String mMsgId;
+
+        void set(int field, Object value) {
+            try {
+                switch (field) {
+                    case 0: mLatitude = (Float) value; break;
+                    case 1: mLongitude = (Float) value; break;
+                    case 2: mRadius = (Float) value; break;
+                    case 3: mExpirationDuration = (Long) value; break;
+                    case 4: mTransitionType = (Integer) value; break;
+                    case 5: mMsgId = (String) value; break;
+                    default: return;
+                }
+                mPresent |= 1 << field;
+            } catch (ClassCastException e) {
+                // A field stored with the wrong type is treated as missing
+            }
+        }
+
+        SimpleGeofence toGeofence(String id) {
+            if (mPresent != ALL_FIELDS ||
+                mLatitude == GeofenceUtils.INVALID_FLOAT_VALUE ||
+                mLongitude == GeofenceUtils.INVALID_FLOAT_VALUE ||
+                mRadius == GeofenceUtils.INVALID_FLOAT_VALUE ||
+                mExpirationDuration == GeofenceUtils.INVALID_LONG_VALUE ||
+                mTransitionType == GeofenceUtils.INVALID_INT_VALUE ||
+                GeofenceUtils.INVALID_STR_VALUE.equals(mMsgId)) {
+                return null;
+            }
+            return new SimpleGeofence(id, mLatitude, mLongitude, mRadius,
+                    mExpirationDuration, mTransitionType, mMsgId);
+        }
+    }
 }
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * Replays recorded tracks through a {@link LocationPipeline}, the same
+ * path live fixes take in the activity, without a device or Location
+ * Services.
+ *
+ * Tracks are read from GPX (track, route or waypoint points with optional
+ * times) or CSV (time in milliseconds, latitude, longitude and optional
+ * accuracy per line). A replay gives every transition reported, the
+ * registration window changes, and a histogram of the time each fix took.
+ * {@link #replayAll} spreads many tracks over one thread per core; each
+ * track gets its own pipeline over the shared table and index, which must
+ * not change during a replay.
+ */
+public class TrajectoryReplay {
+
+    /**
+     * A recorded track, as parallel arrays of fix values.
+     */
+    public static final class Track {
+        private final String mName;
+        private long[] mTimes = new long[256];
+        private double[] mLatitudes = new double[256];
+        private double[] mLongitudes = new double[256];
+        private float[] mAccuracies = new float[256];
+        private int mSize = 0;
+
+        public Track(String name) {
+            mName = name;
+        }
+
+        /**
+         * Append a fix.
+         *
+         * @param accuracy Accuracy radius in meters, or 0 if unknown
+         */
+        public void add(long time, double latitude, double longitude, float accuracy) {
+            if (mSize == mTimes.length) {
+                int capacity = mSize * 2;
+                mTimes = Arrays.copyOf(mTimes, capacity);
+                mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+                mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+                mAccuracies = Arrays.copyOf(mAccuracies, capacity);
+            }
+            mTimes[mSize] = time;
+            mLatitudes[mSize] = latitude;
+            mLongitudes[mSize] = longitude;
+            mAccuracies[mSize] = accuracy;
+            mSize++;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int size() {
+            return mSize;
+        }
+    }
+
+    /**
+     * A transition reported during a replay.
+     */
+    public static final class Transition {
+        public final String track;
+        public final long time;
+        public final String fenceId;
+        public final int type;
+
+        Transition(String track, long time, String fenceId, int type) {
+            this.track = track;
+            this.time = time;
+            this.fenceId = fenceId;
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            return track + " @" + time + " " + type + " " + fenceId;
+        }
+    }
+
+    /**
+     * Counts of durations in power-of-two nanosecond buckets.
+     */
+    public static final class LatencyHistogram {
+        private final long[] mBuckets = new long[64];
+        private long mCount = 0;
+        private long mMax = 0;
+
+        public void record(long nanos) {
+            mBuckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 1) - 1)]++;
+            mCount++;
+            mMax = Math.max(mMax, nanos);
+        }
+
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] += other.mBuckets[i];
+            }
+            mCount += other.mCount;
+            mMax = Math.max(mMax, other.mMax);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param fraction Between 0 and 1
+         * @return An upper bound on that fraction of the durations, in
+         * nanoseconds
+         */
+        public long getPercentile(double fraction) {
+            long target = (long) Math.ceil(mCount * fraction);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(1L << i, mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format(Locale.US, "%d fixes, p50 <= %d ns, p99 <= %d ns, max %d ns",
+                    mCount, getPercentile(0.5), getPercentile(0.99), mMax));
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] > 0) {
+                    text.append(String.format(Locale.US, "\n  <= %d ns: %d", 1L << i,
+                            mBuckets[i]));
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Outcome of replaying one or more tracks.
+     */
+    public static final class Result {
+        public final List<Transition> transitions = new ArrayList<Transition>();
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public int windowChanges = 0;
+        public int requestChanges = 0;
+
+        void add(Result other) {
+            transitions.addAll(other.transitions);
+            latency.add(other.latency);
+            windowChanges += other.windowChanges;
+            requestChanges += other.requestChanges;
+        }
+    }
+
+    /*
+     * Collects what one track's pipeline reports
+     */
+    private static final class Recorder implements GeofenceEvaluator.TransitionListener,
+            NearestFenceWindow.WindowListener {
+        final Result mResult = new Result();
+        final String mTrack;
+        long mTime;
+
+        Recorder(String track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void onGeofenceTransition(int transition, GeofenceTable table, int slot) {
+            mResult.transitions.add(new Transition(mTrack, mTime, table.getId(slot), transition));
+        }
+
+        @Override
+        public void onWindowChanged(List<Geofence> added, List<String> removed) {
+            mResult.windowChanges++;
+        }
+    }
+
+    // Time format of GPX files, with fractional seconds and zone removed
+    private static final String GPX_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+    // Time of a GPX point that has none, or whose time can't be read
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    // Time step assumed between GPX points that have no time
+    private static final long DEFAULT_STEP_MS = 1000;
+
+    private final GeofenceTable mTable;
+    private final GeofenceGridIndex mIndex;
+
+    public TrajectoryReplay(GeofenceTable table, GeofenceGridIndex index) {
+        mTable = table;
+        mIndex = index;
+    }
+
+    /**
+     * Replay one track through a fresh pipeline.
+     */
+    public Result replay(Track track) {
+        Recorder recorder = new Recorder(track.mName);
+        LocationPipeline pipeline = new LocationPipeline(mTable, mIndex);
+        for (int i = 0; i < track.mSize; i++) {
+            recorder.mTime = track.mTimes[i];
+            long start = System.nanoTime();
+            if (pipeline.onFix(track.mLatitudes[i], track.mLongitudes[i], track.mAccuracies[i],
+                    -1, track.mTimes[i], recorder, recorder)) {
+                recorder.mResult.requestChanges++;
+            }
+            recorder.mResult.latency.record(System.nanoTime() - start);
+        }
+        return recorder.mResult;
+    }
+
+    /**
+     * Replay many tracks in parallel, one thread per core.
+     *
+     * @return The combined results, with transitions in track order
+     */
+    public Result replayAll(List<Track> tracks) throws InterruptedException {
+        int threads = Math.max(1, Math.min(tracks.size(),
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(tracks.size());
+            for (final Track track : tracks) {
+                tasks.add(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return replay(track);
+                    }
+                });
+            }
+
+            Result total = new Result();
+            for (Future<Result> future : executor.invokeAll(tasks)) {
+                try {
+                    total.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Read a GPX file. Track, route and waypoint points are all taken, in
+     * file order. Points without a valid lat and lon, or with a time that
+     * can't be read, are logged and skipped.
+     */
+    public static Track readGpx(String name, Reader reader) throws IOException {
+        Track track = new Track(name);
+        SimpleDateFormat format = new SimpleDateFormat(GPX_TIME_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(reader);
+
+            boolean inPoint = false;
+            boolean inTime = false;
+            boolean valid = false;
+            int pointLine = 0;
+            double latitude = 0;
+            double longitude = 0;
+            long time = NO_TIME;
+            long previousTime = -DEFAULT_STEP_MS;
+
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+                    event = parser.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    String tag = parser.getName();
+                    if ("trkpt".equals(tag) || "rtept".equals(tag) || "wpt".equals(tag)) {
+                        inPoint = true;
+                        pointLine = parser.getLineNumber();
+                        latitude = parseCoordinate(parser.getAttributeValue(null, "lat"), 90);
+                        longitude = parseCoordinate(parser.getAttributeValue(null, "lon"), 180);
+                        valid = !Double.isNaN(latitude) && !Double.isNaN(longitude);
+                        time = NO_TIME;
+                    } else if (inPoint && "time".equals(tag)) {
+                        inTime = true;
+                    }
+                } else if (event == XmlPullParser.TEXT && inTime) {
+                    time = parseGpxTime(format, parser.getText().trim());
+                    valid &= time != NO_TIME;
+                } else if (event == XmlPullParser.END_TAG) {
+                    String tag = parser.getName();
+                    if ("time".equals(tag)) {
+                        inTime = false;
+                    } else if (inPoint && ("trkpt".equals(tag) || "rtept".equals(tag)
+                            || "wpt".equals(tag))) {
+                        inPoint = false;
+                        if (!valid) {
+                            Log.w(GeofenceUtils.APPTAG, "Skipping malformed GPX point at line "
+                                    + pointLine + " of " + name);
+                            continue;
+                        }
+                        if (time == NO_TIME) {
+                            time = previousTime + DEFAULT_STEP_MS;
+                        }
+                        track.add(time, latitude, longitude, 0);
+                        previousTime = time;
+                    }
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Bad GPX in " + name + ": " + e.getMessage());
+        }
+        return track;
+    }
+
+    /**
+     * Read a CSV track with one fix per line: time in milliseconds,
+     * latitude, longitude and optionally accuracy in meters. Blank lines,
+     * lines starting with '#' and a header line are skipped.
+     */
+    public static Track readCsv(String name, Reader reader) throws IOException {
+        Track track = new Track(name);
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                if (fields.length < 3) {
+                    throw new NumberFormatException("too few fields");
+                }
+                track.add(Long.parseLong(fields[0].trim()),
+                        Double.parseDouble(fields[1].trim()),
+                        Double.parseDouble(fields[2].trim()),
+                        fields.length > 3 ? Float.parseFloat(fields[3].trim()) : 0);
+            } catch (NumberFormatException e) {
+                if (lineNumber == 1) {
+                    continue;
+                }
+                throw new IOException("Bad line " + lineNumber + " in " + name + ": "
+                        + e.getMessage());
+            }
+        }
+        return track;
+    }
+
+    /*
+     * Parse a GPX coordinate attribute
+     *
+     * @return The coordinate, or NaN if it's missing, not a number or
+     * beyond the limit
+     */
+    private static double parseCoordinate(String text, double limit) {
+        if (text == null) {
+            return Double.NaN;
+        }
+        try {
+            double value = Double.parseDouble(text.trim());
+            return Math.abs(value) <= limit ? value : Double.NaN;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /*
+     * Parse an ISO 8601 time like 2013-07-01T12:00:00.250Z or
+     * 2013-07-01T14:00:00+02:00. A time without a zone is taken as UTC.
+     *
+     * @return Milliseconds since the epoch, or NO_TIME if the text isn't a
+     * time
+     */
+    private static long parseGpxTime(SimpleDateFormat format, String text) {
+        int end = text.length();
+        long offset = 0;
+        int timeStart = text.indexOf('T');
+        int sign = Math.max(text.lastIndexOf('+'), text.lastIndexOf('-'));
+        try {
+            if (end > 0 && text.charAt(end - 1) == 'Z') {
+                end--;
+            } else if (timeStart >= 0 && sign > timeStart) {
+                // Offset of local time from UTC, as +hh:mm, +hhmm or +hh
+                String zone = text.substring(sign + 1).replace(":", "");
+                if (zone.length() != 2 && zone.length() != 4) {
+                    return NO_TIME;
+                }
+                int minutes = Integer.parseInt(zone.substring(0, 2)) * 60
+                        + (zone.length() == 4 ? Integer.parseInt(zone.substring(2)) : 0);
+                offset = (text.charAt(sign) == '-' ? -minutes : minutes) * 60000L;
+                end = sign;
+            }
+
+            long millis = 0;
+            int dot = text.indexOf('.');
+            if (dot >= 0 && dot < end) {
+                String fraction = (text.substring(dot + 1, end) + "000").substring(0, 3);
+                millis = Integer.parseInt(fraction);
+                end = dot;
+            }
+            return format.parse(text.substring(0, end)).getTime() + millis - offset;
+        } catch (NumberFormatException e) {
+            return NO_TIME;
+        } catch (ParseException e) {
+            return NO_TIME;
+        }
+    }
+}
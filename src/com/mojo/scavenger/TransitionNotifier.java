@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.util.ArrayList;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+/**
+ * Posts geofence transition notifications, coalescing bursts.
+ *
+ * Transitions are collected for {@link #COALESCE_WINDOW_MS} and then
+ * posted as one notification: the transition itself if it was alone, or a
+ * summary with the count and the latest one. Posts are at least
+ * {@link #MIN_POST_INTERVAL_MS} apart; transitions arriving sooner wait
+ * for the next post. Every post updates the same notification, and the
+ * content PendingIntent and notification builder are created once per
+ * process. A caller can pass a callback to run once its transition was
+ * posted, for example to acknowledge it in a {@link TransitionQueue}.
+ *
+ * One instance per process, shared by every caller. Transitions may be
+ * reported from any thread; posting happens on the main thread.
+ */
+public class TransitionNotifier {
+
+    // The one notification transitions are posted to
+    public static final int NOTIFICATION_ID = 0;
+
+    // How long to wait for more transitions before posting, in milliseconds
+    public static final long COALESCE_WINDOW_MS = 1000;
+
+    // Shortest time between posts, in milliseconds
+    public static final long MIN_POST_INTERVAL_MS = 5000;
+
+    private static TransitionNotifier sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final NotificationManager mNotificationManager;
+
+    // Built on first post, then reused; only touched on the main thread
+    private NotificationCompat.Builder mBuilder;
+
+    // Transitions waiting for the next post
+    private int mPendingCount = 0;
+    private String mPendingTitle;
+    private boolean mPostScheduled = false;
+
+    // Run after the next post, in the order they were given
+    private final ArrayList<Runnable> mPendingCallbacks = new ArrayList<Runnable>();
+
+    private long mLastPost = -MIN_POST_INTERVAL_MS;
+    private int mPostCount = 0;
+    private int mSuppressedCount = 0;
+
+    private final Runnable mPost = new Runnable() {
+        @Override
+        public void run() {
+            post();
+        }
+    };
+
+    private TransitionNotifier(Context context) {
+        mContext = context;
+        mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    public static synchronized TransitionNotifier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TransitionNotifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue a transition for the next post.
+     *
+     * @param transitionType The human-readable type of transition
+     * @param messages The message IDs of the geofences that triggered it,
+     * as shown to the player
+     * @param onPosted Run on the main thread once the notification showing
+     * the transition was posted, or null
+     */
+    public void notifyTransition(String transitionType, String messages, Runnable onPosted) {
+        String title = mContext.getString(
+                R.string.geofence_transition_notification_title, transitionType, messages);
+        synchronized (this) {
+            mPendingCount++;
+            mPendingTitle = title;
+            if (onPosted != null) {
+                mPendingCallbacks.add(onPosted);
+            }
+            if (!mPostScheduled) {
+                mPostScheduled = true;
+                long now = SystemClock.elapsedRealtime();
+                long delay = Math.max(COALESCE_WINDOW_MS, mLastPost + MIN_POST_INTERVAL_MS - now);
+                mHandler.postDelayed(mPost, delay);
+            }
+        }
+    }
+
+    /**
+     * @return The number of transitions folded into another transition's
+     * notification rather than posted on their own
+     */
+    public synchronized int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /**
+     * @return The number of notifications posted
+     */
+    public synchronized int getPostCount() {
+        return mPostCount;
+    }
+
+    private void post() {
+        int count;
+        String latest;
+        Runnable[] callbacks;
+        synchronized (this) {
+            count = mPendingCount;
+            latest = mPendingTitle;
+            callbacks = mPendingCallbacks.toArray(new Runnable[mPendingCallbacks.size()]);
+            mPendingCount = 0;
+            mPendingTitle = null;
+            mPendingCallbacks.clear();
+            mPostScheduled = false;
+            if (count == 0) {
+                return;
+            }
+            mLastPost = SystemClock.elapsedRealtime();
+            mPostCount++;
+            mSuppressedCount += count - 1;
+        }
+
+        NotificationCompat.Builder builder = getBuilder();
+        if (count == 1) {
+            builder.setContentTitle(latest)
+                   .setContentText(
+                           mContext.getString(R.string.geofence_transition_notification_text));
+        } else {
+            builder.setContentTitle(
+                           mContext.getString(R.string.geofence_transition_summary_title, count))
+                   .setContentText(latest);
+        }
+        builder.setNumber(count)
+               .setWhen(System.currentTimeMillis());
+        mNotificationManager.notify(NOTIFICATION_ID, builder.build());
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+
+        if (count > 1) {
+            Log.d(GeofenceUtils.APPTAG, "Coalesced " + count + " transitions into one notification ("
+                    + getSuppressedCount() + " suppressed so far)");
+        }
+    }
+
+    /*
+     * The builder, with everything that never changes already set
+     */
+    private NotificationCompat.Builder getBuilder() {
+        if (mBuilder == null) {
+            // Create an explicit content Intent that starts the main Activity
+            Intent notificationIntent = new Intent(mContext, MainActivity.class);
+
+            // Construct a task stack with the main Activity as the parent
+            TaskStackBuilder stackBuilder = TaskStackBuilder.create(mContext);
+            stackBuilder.addParentStack(MainActivity.class);
+            stackBuilder.addNextIntent(notificationIntent);
+
+            // Get a PendingIntent containing the entire back stack
+            PendingIntent notificationPendingIntent =
+                    stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+
+            mBuilder = new NotificationCompat.Builder(mContext)
+                    .setSmallIcon(R.drawable.ic_launcher)
+                    .setContentIntent(notificationPendingIntent)
+                    .setOnlyAlertOnce(true);
+        }
+        return mBuilder;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mojo.scavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * An append-only queue of geofence transitions in a memory-mapped file, so
+ * transitions recorded before a process dies are still delivered after it
+ * restarts.
+ *
+ * Each transition is appended as one record: its length, the transition
+ * type, the time, the fence IDs, and a CRC32 of all of them. Writes to the
+ * mapping land in the page cache, so they survive the death of the
+ * process without an fsync. Transitions are numbered by offsets that only
+ * ever grow; the header holds the offset of the first unacknowledged one.
+ *
+ * A {@link Consumer} gets the unacknowledged transitions in batches of up
+ * to {@link #MAX_BATCH} on a background thread, and each batch is
+ * acknowledged when the consumer runs the acknowledgement it was handed,
+ * which may be after it returns. A process hands each transition to a
+ * consumer once; delivery is at least once, since a batch not yet
+ * acknowledged when the process dies is delivered again after a restart. Space before the
+ * acknowledged offset is reclaimed by moving the rest of the queue to the
+ * front of the file; the file only grows if that isn't enough.
+ *
+ * One instance per process. Thread safe.
+ */
+public class TransitionQueue {
+
+    /**
+     * Receives batches of transitions, on the queue's background thread.
+     */
+    public interface Consumer {
+        /**
+         * @param transitions Transitions in the order they were appended.
+         * The list is only valid during the call.
+         * @param ack Acknowledges the transitions when run, from any
+         * thread, once they're safely handled; until then they're delivered
+         * again after a restart
+         */
+        void onTransitions(List<Transition> transitions, Runnable ack);
+    }
+
+    /**
+     * One recorded transition.
+     */
+    public static class Transition {
+        // Transition type, as reported by Location Services
+        public final int type;
+
+        // Wall clock time it was recorded, in milliseconds
+        public final long time;
+
+        // Request IDs of the geofences that triggered it
+        public final String[] ids;
+
+        // Offset just past this transition; acknowledge it to consume it
+        public final long end;
+
+        Transition(int type, long time, String[] ids, long end) {
+            this.type = type;
+            this.time = time;
+            this.ids = ids;
+            this.end = end;
+        }
+    }
+
+    // Name of the queue file in the app's files directory
+    static final String FILE_NAME = "transitions.queue";
+
+    // Largest number of transitions handed to a consumer at once
+    public static final int MAX_BATCH = 64;
+
+    private static final int MAGIC = 0x54525155; // "TRQU"
+    private static final int FORMAT_VERSION = 1;
+
+    // Header: magic, version, offset of the first byte of the data area,
+    // offset of the first unacknowledged transition
+    private static final int HEADER_SIZE = 24;
+    private static final int BASE_POSITION = 8;
+    private static final int ACK_POSITION = 16;
+
+    // Record: payload length, payload, CRC32 of the payload
+    private static final int RECORD_OVERHEAD = 8;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    // Largest ID count and encoded ID length a record's shorts can hold
+    private static final int MAX_IDS = Short.MAX_VALUE;
+    private static final int MAX_ID_BYTES = Short.MAX_VALUE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static TransitionQueue sInstance;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private MappedByteBuffer mMap;
+    private int mCapacity;
+
+    // Position in the file of the first byte past the last record
+    private int mTail;
+
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mScratch = new byte[256];
+
+    // Background thread for consumers
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TransitionQueue");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Set while a drain is queued on the background thread but not started
+    private boolean mDrainScheduled = false;
+
+    // Offset up to which transitions were handed to a consumer by this
+    // process, acknowledged or not
+    private long mDelivered = 0;
+
+    /**
+     * Opens the queue, keeping every transition an earlier process
+     * appended and didn't get acknowledged.
+     *
+     * @param file The queue file
+     */
+    public TransitionQueue(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        boolean fresh = mRaf.length() < HEADER_SIZE;
+        mCapacity = (int) Math.max(mRaf.length(), INITIAL_CAPACITY);
+        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+
+        if (fresh || mMap.getInt(0) != MAGIC || mMap.getInt(4) != FORMAT_VERSION) {
+            if (!fresh) {
+                Log.w(GeofenceUtils.APPTAG, "Discarding unreadable " + file);
+            }
+            mMap.putInt(HEADER_SIZE, 0);
+            mMap.putLong(BASE_POSITION, 0);
+            mMap.putLong(ACK_POSITION, 0);
+            mMap.putInt(4, FORMAT_VERSION);
+            mMap.putInt(0, MAGIC);
+            mTail = HEADER_SIZE;
+            return;
+        }
+
+        // Find the end of the queue; a torn record ends it
+        int position = toPosition(mMap.getLong(ACK_POSITION));
+        if (position < HEADER_SIZE || position > mCapacity) {
+            Log.w(GeofenceUtils.APPTAG, "Discarding unreadable " + file);
+            position = HEADER_SIZE;
+            mMap.putLong(ACK_POSITION, toOffset(position));
+        }
+        int next;
+        while ((next = nextRecord(position)) > 0) {
+            position = next;
+        }
+        mTail = position;
+        if (mTail + 4 <= mCapacity) {
+            mMap.putInt(mTail, 0);
+        }
+    }
+
+    public static synchronized TransitionQueue getInstance(Context context) throws IOException {
+        if (sInstance == null) {
+            sInstance = new TransitionQueue(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Record a transition. Returns once it's in the mapped file, without
+     * waiting for any consumer.
+     *
+     * @param type The transition type
+     * @param ids The request IDs of the geofences that triggered it
+     * @param time Wall clock time of the transition, in milliseconds
+     * @return The offset just past the transition
+     * @throws IOException If the transition can't be written, including
+     * when it has too many IDs or an ID is too long for a record
+     */
+    public synchronized long append(int type, String[] ids, long time) throws IOException {
+        if (ids.length > MAX_IDS) {
+            throw new IOException("Too many geofence IDs for a record: " + ids.length);
+        }
+        byte[][] encoded = new byte[ids.length][];
+        int length = 4 + 8 + 2;
+        for (int i = 0; i < ids.length; i++) {
+            encoded[i] = ids[i].getBytes(UTF_8);
+            if (encoded[i].length > MAX_ID_BYTES) {
+                throw new IOException("Geofence ID too long for a record: "
+                        + encoded[i].length + " bytes");
+            }
+            length += 2 + encoded[i].length;
+        }
+        ensureSpace(RECORD_OVERHEAD + length + 4);
+
+        // Write the record behind a zero terminator, then publish it by
+        // writing its length, so a reader never sees half a record
+        int start = mTail;
+        int end = start + RECORD_OVERHEAD + length;
+        mMap.putInt(end, 0);
+        mMap.position(start + 4);
+        mMap.putInt(type);
+        mMap.putLong(time);
+        mMap.putShort((short) ids.length);
+        for (int i = 0; i < encoded.length; i++) {
+            mMap.putShort((short) encoded[i].length);
+            mMap.put(encoded[i]);
+        }
+        mMap.putInt(start + 4 + length, checksum(start + 4, length));
+        mMap.putInt(start, length);
+        mTail = end;
+        return toOffset(end);
+    }
+
+    /**
+     * Read unacknowledged transitions, oldest first.
+     *
+     * @param max The largest number of transitions to read
+     * @param out Receives the transitions
+     * @return The offset just past the last transition read
+     */
+    public synchronized long read(int max, List<Transition> out) {
+        return read(mMap.getLong(ACK_POSITION), max, out);
+    }
+
+    /*
+     * Read transitions from an offset, which must be at a record boundary
+     */
+    private synchronized long read(long from, int max, List<Transition> out) {
+        int position = toPosition(from);
+        for (int i = 0; i < max && position < mTail; i++) {
+            int length = mMap.getInt(position);
+            mMap.position(position + 4);
+            int type = mMap.getInt();
+            long time = mMap.getLong();
+            String[] ids = new String[mMap.getShort()];
+            for (int j = 0; j < ids.length; j++) {
+                byte[] bytes = new byte[mMap.getShort()];
+                mMap.get(bytes);
+                ids[j] = new String(bytes, UTF_8);
+            }
+            position += RECORD_OVERHEAD + length;
+            out.add(new Transition(type, time, ids, toOffset(position)));
+        }
+        return toOffset(position);
+    }
+
+    /**
+     * Acknowledge every transition before an offset, so it's never
+     * delivered again.
+     *
+     * @param offset An offset returned by {@link #read}, or the end of a
+     * {@link Transition}
+     */
+    public synchronized void ack(long offset) {
+        long acked = mMap.getLong(ACK_POSITION);
+        if (offset > acked && offset <= toOffset(mTail)) {
+            mMap.putLong(ACK_POSITION, offset);
+        }
+    }
+
+    /**
+     * @return The number of bytes of unacknowledged transitions
+     */
+    public synchronized long getBacklog() {
+        return toOffset(mTail) - mMap.getLong(ACK_POSITION);
+    }
+
+    /**
+     * Hand every unacknowledged transition to a consumer in batches, on
+     * the queue's background thread. Returns immediately. Calls made while
+     * a drain is still waiting to start are folded into it.
+     */
+    public void drain(final Consumer consumer) {
+        synchronized (this) {
+            if (mDrainScheduled) {
+                return;
+            }
+            mDrainScheduled = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (TransitionQueue.this) {
+                    mDrainScheduled = false;
+                }
+                List<Transition> batch = new ArrayList<Transition>(MAX_BATCH);
+                while (true) {
+                    batch.clear();
+                    final long end;
+                    synchronized (TransitionQueue.this) {
+                        // Skip transitions handed over earlier and still
+                        // waiting for their acknowledgement
+                        long start = Math.max(mMap.getLong(ACK_POSITION), mDelivered);
+                        end = read(start, MAX_BATCH, batch);
+                        mDelivered = end;
+                    }
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                    consumer.onTransitions(batch, new Runnable() {
+                        @Override
+                        public void run() {
+                            ack(end);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /*
+     * Make room for a record at the tail, first by dropping acknowledged
+     * records from the front of the file, then by growing the file
+     */
+    private void ensureSpace(int needed) throws IOException {
+        if (mTail + needed <= mCapacity) {
+            return;
+        }
+        long acked = mMap.getLong(ACK_POSITION);
+        int ackPosition = toPosition(acked);
+        int live = mTail - ackPosition;
+
+        // Only move the queue if it and its terminator don't overlap its
+        // new place, so a crash halfway leaves the old copy intact
+        if (ackPosition - HEADER_SIZE >= live + 4 && HEADER_SIZE + live + needed <= mCapacity) {
+            for (int i = 0; i < live; i++) {
+                mMap.put(HEADER_SIZE + i, mMap.get(ackPosition + i));
+            }
+            mMap.putInt(HEADER_SIZE + live, 0);
+
+            // One write switches to the moved copy
+            mMap.putLong(BASE_POSITION, acked);
+            mTail = HEADER_SIZE + live;
+            return;
+        }
+
+        int capacity = mCapacity;
+        while (capacity < mTail + needed) {
+            capacity *= 2;
+        }
+        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mCapacity = capacity;
+        Log.d(GeofenceUtils.APPTAG, "Grew " + mFile + " to " + capacity + " bytes");
+    }
+
+    /*
+     * @return The position after the record at a position, or 0 if there
+     * is no complete record there
+     */
+    private int nextRecord(int position) {
+        if (position + RECORD_OVERHEAD > mCapacity) {
+            return 0;
+        }
+        int length = mMap.getInt(position);
+        if (length <= 0 || length > mCapacity - position - RECORD_OVERHEAD) {
+            return 0;
+        }
+        if (mMap.getInt(position + 4 + length) != checksum(position + 4, length)) {
+            return 0;
+        }
+        return position + RECORD_OVERHEAD + length;
+    }
+
+    private int checksum(int position, int length) {
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        mMap.position(position);
+        mMap.get(mScratch, 0, length);
+        mCrc.reset();
+        mCrc.update(mScratch, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    /*
+     * Convert between offsets, which only grow, and positions in the file
+     */
+    private long toOffset(int position) {
+        return mMap.getLong(BASE_POSITION) + position - HEADER_SIZE;
+    }
+
+    private int toPosition(long offset) {
+        return (int) (offset - mMap.getLong(BASE_POSITION)) + HEADER_SIZE;
+    }
+}